@@ -26,6 +26,9 @@ module.exports = {
     exec: function(bridgeSecret, service, action, callbackId, argsJson) {
         return prompt(argsJson, 'gap:'+JSON.stringify([bridgeSecret, service, action, callbackId]));
     },
+    execBatch: function(bridgeSecret, batch) {
+        return prompt(batch, 'gap_batch:' + bridgeSecret);
+    },
     setNativeToJsBridgeMode: function(bridgeSecret, value) {
         prompt(value, 'gap_bridge_mode:' + bridgeSecret);
     },
@@ -59,9 +59,23 @@ var cordova = require('cordova'),
     bridgeSecret = -1;
 
 var messagesFromNative = [];
+// Fragments of a message that is too large to be sent in one go.
+var messageChunks = [];
 var isProcessing = false;
+// Set while the bytes of a binary payload are being fetched. Later messages wait for it.
+var isFetchingBinaryPayload = false;
+// Fetched once the bridge is set up. See NativeToJsMessageQueue.setBinaryPayloadsConfirmed().
+var BINARY_PAYLOAD_PROBE_URL = 'https://cordova-bridge.invalid/payload/probe';
 var resolvedPromise = typeof Promise == 'undefined' ? null : Promise.resolve();
 var nextTick = resolvedPromise ? function(fn) { resolvedPromise.then(fn); } : function(fn) { setTimeout(fn); };
+// When enabled by setExecBatchingEnabled(), exec() calls made within the same
+// tick are sent to native together. Only done when nextTick() is a microtask,
+// so that calls are not delayed.
+var execBatchingEnabled = false;
+var pendingExecs = [];
+// Whether batches can be received in the binary wire format (see decodeBinaryBatch()).
+var binaryWireFormatSupported = typeof DataView != 'undefined' && typeof Uint16Array != 'undefined' &&
+    typeof Float64Array != 'undefined' && typeof XMLHttpRequest != 'undefined';
 
 function androidExec(success, fail, service, action, args) {
     if (bridgeSecret < 0) {
@@ -91,6 +105,14 @@ function androidExec(success, fail, service, action, args) {
         cordova.callbacks[callbackId] = {success:success, fail:fail};
     }
 
+    if (execBatchingEnabled && nativeApiProvider.get().execBatch) {
+        if (pendingExecs.length === 0) {
+            nextTick(flushPendingExecs);
+        }
+        pendingExecs.push([service, action, callbackId, argsJson]);
+        return;
+    }
+
     var msgs = nativeApiProvider.get().exec(bridgeSecret, service, action, callbackId, argsJson);
     // If argsJson was received by Java as null, try again with the PROMPT bridge mode.
     // This happens in rare circumstances, such as when certain Unicode characters are passed over the bridge on a Galaxy S2.  See CB-2666.
@@ -105,11 +127,72 @@ function androidExec(success, fail, service, action, args) {
     }
 }
 
+// Sends the exec() calls queued by androidExec() in a single bridge crossing.
+function flushPendingExecs() {
+    var execs = pendingExecs;
+    pendingExecs = [];
+    var msgs = sendExecs(execs);
+    // See androidExec().
+    if (jsToNativeBridgeMode == jsToNativeModes.JS_OBJECT && msgs === "@Null arguments.") {
+        androidExec.setJsToNativeBridgeMode(jsToNativeModes.PROMPT);
+        msgs = sendExecs(execs);
+        androidExec.setJsToNativeBridgeMode(jsToNativeModes.JS_OBJECT);
+    }
+    if (msgs) {
+        messagesFromNative.push(msgs);
+        // Process sync since we know we're already top-of-stack.
+        processMessages();
+    }
+}
+
+function sendExecs(execs) {
+    var nativeApi = nativeApiProvider.get();
+    if (execs.length == 1) {
+        return nativeApi.exec(bridgeSecret, execs[0][0], execs[0][1], execs[0][2], execs[0][3]);
+    }
+    // Each field is sent as "<length> <value>".
+    var batch = '';
+    for (var i = 0; i < execs.length; i++) {
+        for (var j = 0; j < 4; j++) {
+            batch += execs[i][j].length + ' ' + execs[i][j];
+        }
+    }
+    return nativeApi.execBatch(bridgeSecret, batch);
+}
+
+// Opt-in, since batched calls reach native in a microtask after exec() returns
+// rather than during it. Plugins that expect native to have run an exec() by
+// the time it returns (e.g. before a synchronous prompt() or alert()) should
+// not enable it.
+androidExec.setExecBatchingEnabled = function(enabled) {
+    execBatchingEnabled = enabled && !!resolvedPromise;
+};
+
 androidExec.init = function() {
-    bridgeSecret = +prompt('', 'gap_init:' + nativeToJsBridgeMode);
+    // The native side sends the binary wire format only when asked for it here.
+    bridgeSecret = +prompt(binaryWireFormatSupported ? 'binary' : '', 'gap_init:' + nativeToJsBridgeMode);
     channel.onNativeReady.fire();
+    probeBinaryPayloads();
 };
 
+// Binary payloads are only sent once the page has shown that it can fetch them,
+// since a Content-Security-Policy without connect-src https://cordova-bridge.invalid blocks them.
+function probeBinaryPayloads() {
+    if (typeof XMLHttpRequest == 'undefined' || typeof ArrayBuffer == 'undefined') {
+        return;
+    }
+    var xhr = new XMLHttpRequest();
+    xhr.open('GET', BINARY_PAYLOAD_PROBE_URL, true);
+    xhr.responseType = 'arraybuffer';
+    xhr.onloadend = function() {
+        // Fails with a 404 when the native side has them disabled.
+        if (xhr.status == 200 && xhr.response && xhr.response.byteLength == 4 && bridgeSecret >= 0) {
+            prompt('', 'gap_binary:' + bridgeSecret);
+        }
+    };
+    xhr.send();
+}
+
 function pollOnceFromOnlineEvent() {
     pollOnce(true);
 }
@@ -200,6 +283,10 @@ function buildPayload(payload, message) {
     } else if (payloadKind == 'A') {
         var data = message.slice(1);
         payload.push(base64.toArrayBuffer(data));
+    } else if (payloadKind == 'D') {
+        payload.push(new Float64Array(base64.toArrayBuffer(message.slice(1))));
+    } else if (payloadKind == 'I') {
+        payload.push(new Int32Array(base64.toArrayBuffer(message.slice(1))));
     } else if (payloadKind == 'S') {
         payload.push(window.atob(message.slice(1)));
     } else if (payloadKind == 'M') {
@@ -230,17 +317,161 @@ function processMessage(message) {
         var nextSpaceIdx = message.indexOf(' ', spaceIdx + 1);
         var callbackId = message.slice(spaceIdx + 1, nextSpaceIdx);
         var payloadMessage = message.slice(nextSpaceIdx + 1);
+        if (payloadMessage.charAt(0) == 'B') {
+            fetchBinaryPayload(payloadMessage.slice(1), function(data) {
+                if (data) {
+                    cordova.callbackFromNative(callbackId, success, status, [data], keepCallback);
+                } else {
+                    cordova.callbackFromNative(callbackId, false, cordova.callbackStatus.ERROR, ['Could not fetch binary payload'], keepCallback);
+                }
+            });
+            return;
+        }
         var payload = [];
         buildPayload(payload, payloadMessage);
         cordova.callbackFromNative(callbackId, success, status, payload, keepCallback);
+    } else if (firstChar == 'W') {
+        // A batch of messages in the binary wire format, followed by its callbacks,
+        // each prefixed with whether the batch keeps it.
+        var parts = message.slice(1).split(' ');
+        fetchBinaryPayload(parts[0], function(data) {
+            if (data) {
+                decodeBinaryBatch(data);
+                return;
+            }
+            // So that the callbacks don't wait forever for the lost results.
+            for (var i = 1; i < parts.length; ++i) {
+                cordova.callbackFromNative(parts[i].slice(1), false, cordova.callbackStatus.ERROR, ['Could not fetch binary payload'], parts[i].charAt(0) == '1');
+            }
+        });
     } else {
         console.log("processMessage failed: invalid message: " + JSON.stringify(message));
     }
 }
 
+// ArrayBuffers sent without base64 arrive as a one-time URL that the native side serves.
+function fetchBinaryPayload(url, callback) {
+    isFetchingBinaryPayload = true;
+    var xhr = new XMLHttpRequest();
+    xhr.open('GET', url, true);
+    xhr.responseType = 'arraybuffer';
+    xhr.onloadend = function() {
+        isFetchingBinaryPayload = false;
+        try {
+            if (xhr.status == 200) {
+                callback(xhr.response);
+            } else {
+                console.log("processMessage failed: could not fetch binary payload: " + xhr.status);
+                // Have the native side send text from now on.
+                prompt('failed', 'gap_binary:' + bridgeSecret);
+                callback(null);
+            }
+        } finally {
+            processMessages();
+        }
+    };
+    xhr.send();
+}
+
+// Binary wire format value tags. See BinaryMessageWriter.java.
+var TAG_NULL = 0, TAG_FALSE = 1, TAG_TRUE = 2, TAG_INT32 = 3, TAG_FLOAT64 = 4, TAG_STRING = 5, TAG_JSON = 6,
+    TAG_ARRAYBUFFER = 7, TAG_BINARYSTRING = 8, TAG_FLOAT64_ARRAY = 9, TAG_INT32_ARRAY = 10, TAG_MULTIPART = 11;
+
+// Processes each message of a batch encoded by BinaryMessageWriter.java.
+function decodeBinaryBatch(buffer) {
+    var view = new DataView(buffer);
+    if (view.getUint8(0) != 1) {
+        console.log("processMessage failed: unknown binary wire format version: " + view.getUint8(0));
+        return;
+    }
+    var messageCount = view.getUint32(1, true);
+    var stringTableOffset = view.getUint32(5, true);
+    var reader = {view: view, offset: stringTableOffset + 4};
+    var strings = [];
+    for (var i = view.getUint32(stringTableOffset, true); i > 0; i--) {
+        strings.push(readBinaryString(reader));
+    }
+    reader.offset = 9;
+    for (var j = 0; j < messageCount; j++) {
+        var kind = view.getUint8(reader.offset);
+        if (kind == 0x4A) { // J
+            reader.offset += 1;
+            eval(readBinaryString(reader));
+            continue;
+        }
+        var keepCallback = view.getUint8(reader.offset + 1) == 1;
+        var status = view.getUint8(reader.offset + 2);
+        var callbackId = strings[view.getUint32(reader.offset + 3, true)];
+        reader.offset += 7;
+        var payload = [];
+        readBinaryValue(reader, payload);
+        cordova.callbackFromNative(callbackId, kind == 0x53, status, payload, keepCallback); // S
+    }
+}
+
+function readBinaryValue(reader, payload) {
+    var view = reader.view;
+    var tag = view.getUint8(reader.offset);
+    reader.offset += 1;
+    if (tag == TAG_NULL) {
+        payload.push(null);
+    } else if (tag == TAG_FALSE || tag == TAG_TRUE) {
+        payload.push(tag == TAG_TRUE);
+    } else if (tag == TAG_INT32) {
+        payload.push(view.getInt32(reader.offset, true));
+        reader.offset += 4;
+    } else if (tag == TAG_FLOAT64) {
+        payload.push(view.getFloat64(reader.offset, true));
+        reader.offset += 8;
+    } else if (tag == TAG_STRING) {
+        payload.push(readBinaryString(reader));
+    } else if (tag == TAG_JSON) {
+        payload.push(JSON.parse(readBinaryString(reader)));
+    } else if (tag == TAG_MULTIPART) {
+        var count = view.getUint32(reader.offset, true);
+        reader.offset += 4;
+        for (var i = 0; i < count; i++) {
+            readBinaryValue(reader, payload);
+        }
+    } else {
+        // Length-prefixed bytes. Copied out so that typed arrays are aligned.
+        var width = tag == TAG_FLOAT64_ARRAY ? 8 : tag == TAG_INT32_ARRAY ? 4 : 1;
+        var byteLength = view.getUint32(reader.offset, true) * width;
+        var start = view.byteOffset + reader.offset + 4;
+        var bytes = view.buffer.slice(start, start + byteLength);
+        reader.offset += 4 + byteLength;
+        if (tag == TAG_FLOAT64_ARRAY) {
+            payload.push(new Float64Array(bytes));
+        } else if (tag == TAG_INT32_ARRAY) {
+            payload.push(new Int32Array(bytes));
+        } else if (tag == TAG_BINARYSTRING) {
+            payload.push(charCodesToString(new Uint8Array(bytes)));
+        } else {
+            payload.push(bytes);
+        }
+    }
+}
+
+// Typed arrays use the platform's byte order, which is little-endian on Android devices.
+function readBinaryString(reader) {
+    var length = reader.view.getUint32(reader.offset, true);
+    var start = reader.view.byteOffset + reader.offset + 4;
+    reader.offset += 4 + length * 2;
+    return charCodesToString(new Uint16Array(reader.view.buffer.slice(start, start + length * 2)));
+}
+
+function charCodesToString(codes) {
+    // Converted in slices so that apply() does not exceed the maximum number of arguments.
+    var ret = '';
+    for (var i = 0; i < codes.length; i += 8192) {
+        ret += String.fromCharCode.apply(null, codes.subarray(i, i + 8192));
+    }
+    return ret;
+}
+
 function processMessages() {
-    // Check for the reentrant case.
-    if (isProcessing) {
+    // Check for the reentrant case, and wait for binary payloads so that messages stay in order.
+    if (isProcessing || isFetchingBinaryPayload) {
         return;
     }
     if (messagesFromNative.length === 0) {
@@ -251,10 +482,23 @@ function processMessages() {
         var msg = popMessageFromQueue();
         // The Java side can send a * message to indicate that it
         // still has messages waiting to be retrieved.
-        if (msg == '*' && messagesFromNative.length === 0) {
-            nextTick(pollOnce);
+        if (msg == '*') {
+            if (messagesFromNative.length === 0) {
+                nextTick(pollOnce);
+            }
             return;
         }
+        // Large messages are sent as fragments that start with ~,
+        // followed by a final fragment without the marker.
+        if (msg.charAt(0) == '~') {
+            messageChunks.push(msg.slice(1));
+            return;
+        }
+        if (messageChunks.length > 0) {
+            messageChunks.push(msg);
+            msg = messageChunks.join('');
+            messageChunks = [];
+        }
         processMessage(msg);
     } finally {
         isProcessing = false;
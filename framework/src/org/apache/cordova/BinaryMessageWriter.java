@@ -0,0 +1,227 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Encodes a batch of Native->JS messages in the binary wire format, which
+ * cordova.js decodes with a DataView. See NativeToJsMessageQueue.setBinaryWireFormatEnabled().
+ * All numbers are little-endian, and strings are a u32 count of UTF-16 code
+ * units followed by the code units.
+ *
+ * Batch:   u8 VERSION, u32 message count, u32 offset of the string table, messages, string table
+ * Message: u8 'J', string of JS to eval
+ *          u8 'S' or 'F', u8 keepCallback, u8 status, u32 string table index of the callbackId, value
+ * Value:   u8 tag, followed by:
+ *          TAG_NULL, TAG_FALSE, TAG_TRUE: nothing
+ *          TAG_INT32: i32. TAG_FLOAT64: f64
+ *          TAG_STRING, TAG_JSON: string
+ *          TAG_ARRAYBUFFER, TAG_BINARYSTRING: u32 byte count, bytes
+ *          TAG_FLOAT64_ARRAY, TAG_INT32_ARRAY: u32 element count, elements
+ *          TAG_MULTIPART: u32 value count, values
+ * String table: u32 count, strings
+ *
+ * Each callbackId is written once per batch, however many of its results the batch holds.
+ */
+final class BinaryMessageWriter {
+    static final int VERSION = 1;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_FALSE = 1;
+    static final int TAG_TRUE = 2;
+    static final int TAG_INT32 = 3;
+    static final int TAG_FLOAT64 = 4;
+    static final int TAG_STRING = 5;
+    static final int TAG_JSON = 6;
+    static final int TAG_ARRAYBUFFER = 7;
+    static final int TAG_BINARYSTRING = 8;
+    static final int TAG_FLOAT64_ARRAY = 9;
+    static final int TAG_INT32_ARRAY = 10;
+    static final int TAG_MULTIPART = 11;
+
+    private static final int HEADER_SIZE = 9;
+
+    private byte[] buf;
+    private int pos;
+    private int messageCount;
+    private final HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+    private final ArrayList<String> strings = new ArrayList<String>();
+
+    BinaryMessageWriter(int initialCapacity) {
+        buf = new byte[Math.max(initialCapacity, HEADER_SIZE + 16)];
+        pos = HEADER_SIZE;
+    }
+
+    void writeJavaScript(String statement) {
+        messageCount++;
+        writeU8('J');
+        writeString(statement);
+    }
+
+    /**
+     * Writes a result. The text of a MESSAGE_TYPE_JSON result is read from jsonText,
+     * from jsonStart to its end, rather than from the JSONObject or JSONArray.
+     */
+    void writePluginResult(String callbackId, PluginResult result, CharSequence jsonText, int jsonStart) {
+        messageCount++;
+        int status = result.getStatus();
+        boolean success = status == PluginResult.Status.OK.ordinal() || status == PluginResult.Status.NO_RESULT.ordinal();
+        writeU8(success ? 'S' : 'F');
+        writeU8(result.getKeepCallback() ? 1 : 0);
+        writeU8(status);
+        Integer index = stringIndexes.get(callbackId);
+        if (index == null) {
+            index = strings.size();
+            stringIndexes.put(callbackId, index);
+            strings.add(callbackId);
+        }
+        writeU32(index);
+        writeValue(result, jsonText, jsonStart);
+    }
+
+    /**
+     * Appends the string table, fills in the header, and returns the encoded batch.
+     */
+    byte[] finish() {
+        int stringTableOffset = pos;
+        writeU32(strings.size());
+        for (int i = 0; i < strings.size(); ++i) {
+            writeString(strings.get(i));
+        }
+        int end = pos;
+        pos = 0;
+        writeU8(VERSION);
+        writeU32(messageCount);
+        writeU32(stringTableOffset);
+        return Arrays.copyOf(buf, end);
+    }
+
+    private void writeValue(PluginResult result, CharSequence jsonText, int jsonStart) {
+        switch (result.getMessageType()) {
+            case PluginResult.MESSAGE_TYPE_NULL:
+                writeU8(TAG_NULL);
+                break;
+            case PluginResult.MESSAGE_TYPE_BOOLEAN:
+                writeU8(result.getMessage().charAt(0) == 't' ? TAG_TRUE : TAG_FALSE);
+                break;
+            case PluginResult.MESSAGE_TYPE_NUMBER:
+                double value = result.getNumberValue();
+                int intValue = (int) value;
+                // -0.0 compares equal to 0, but would lose its sign.
+                if (intValue == value && Double.doubleToRawLongBits(value) != Long.MIN_VALUE) {
+                    writeU8(TAG_INT32);
+                    writeU32(intValue);
+                } else {
+                    writeU8(TAG_FLOAT64);
+                    writeU64(Double.doubleToRawLongBits(value));
+                }
+                break;
+            case PluginResult.MESSAGE_TYPE_STRING:
+                writeU8(TAG_STRING);
+                writeString(result.getStrMessage());
+                break;
+            case PluginResult.MESSAGE_TYPE_ARRAYBUFFER:
+            case PluginResult.MESSAGE_TYPE_BINARYSTRING:
+                byte[] data = result.getBinaryMessage();
+                writeU8(result.getMessageType() == PluginResult.MESSAGE_TYPE_ARRAYBUFFER ? TAG_ARRAYBUFFER : TAG_BINARYSTRING);
+                writeU32(data.length);
+                ensureCapacity(data.length);
+                System.arraycopy(data, 0, buf, pos, data.length);
+                pos += data.length;
+                break;
+            case PluginResult.MESSAGE_TYPE_DOUBLE_ARRAY:
+                double[] doubles = result.getDoubleArrayMessage();
+                writeU8(TAG_FLOAT64_ARRAY);
+                writeU32(doubles.length);
+                ensureCapacity(doubles.length * 8);
+                for (int i = 0; i < doubles.length; ++i) {
+                    writeU64(Double.doubleToRawLongBits(doubles[i]));
+                }
+                break;
+            case PluginResult.MESSAGE_TYPE_INT_ARRAY:
+                int[] ints = result.getIntArrayMessage();
+                writeU8(TAG_INT32_ARRAY);
+                writeU32(ints.length);
+                ensureCapacity(ints.length * 4);
+                for (int i = 0; i < ints.length; ++i) {
+                    writeU32(ints[i]);
+                }
+                break;
+            case PluginResult.MESSAGE_TYPE_MULTIPART:
+                int count = result.getMultipartMessagesSize();
+                writeU8(TAG_MULTIPART);
+                writeU32(count);
+                for (int i = 0; i < count; ++i) {
+                    writeValue(result.getMultipartMessage(i), null, 0);
+                }
+                break;
+            case PluginResult.MESSAGE_TYPE_JSON:
+            default:
+                writeU8(TAG_JSON);
+                if (jsonText != null) {
+                    writeString(jsonText, jsonStart, jsonText.length());
+                } else {
+                    // Parts of multipart results are serialized when queued.
+                    writeString(result.getMessage());
+                }
+        }
+    }
+
+    private void writeString(CharSequence value) {
+        writeString(value, 0, value.length());
+    }
+
+    private void writeString(CharSequence value, int start, int end) {
+        int len = end - start;
+        writeU32(len);
+        ensureCapacity(len * 2);
+        for (int i = start; i < end; ++i) {
+            char c = value.charAt(i);
+            buf[pos++] = (byte) c;
+            buf[pos++] = (byte) (c >>> 8);
+        }
+    }
+
+    private void writeU8(int value) {
+        ensureCapacity(1);
+        buf[pos++] = (byte) value;
+    }
+
+    private void writeU32(int value) {
+        ensureCapacity(4);
+        buf[pos++] = (byte) value;
+        buf[pos++] = (byte) (value >>> 8);
+        buf[pos++] = (byte) (value >>> 16);
+        buf[pos++] = (byte) (value >>> 24);
+    }
+
+    private void writeU64(long value) {
+        writeU32((int) value);
+        writeU32((int) (value >>> 32));
+    }
+
+    private void ensureCapacity(int extra) {
+        if (pos + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(pos + extra, buf.length * 2));
+        }
+    }
+}
@@ -18,6 +18,9 @@
 */
 package org.apache.cordova;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 import org.json.JSONArray;
 
 import android.util.Log;
@@ -33,6 +36,16 @@ public class CallbackContext {
     private CordovaWebView webView;
     private boolean finished;
     private int changingThreads;
+    private boolean coalesceResults;
+    private int lane = PluginResult.LANE_INTERACTIVE;
+    // Set by PluginManager.exec(). See PluginManager.getExecLatency().
+    private long execStartNanos;
+    private LatencyHistogram resultLatency;
+    private LatencyHistogram deliveryLatency;
+    // Set by PluginManager.exec(). Otherwise, the webView's is used.
+    private PluginManager pluginManager;
+    // PluginManager's page generation when the call was made.
+    private int pageGeneration;
 
     public CallbackContext(String callbackId, CordovaWebView webView) {
         this.callbackId = callbackId;
@@ -51,16 +64,94 @@ public class CallbackContext {
         return callbackId;
     }
 
+    /**
+     * When true, results sent with keepCallback set replace any of this callback's
+     * results that have not yet been sent to JS. See PluginResult.setCoalesce().
+     */
+    public void setCoalesceResults(boolean value) {
+        coalesceResults = value;
+    }
+
+    /**
+     * Moves results sent through this context from the default LANE_INTERACTIVE
+     * to the given lane. See PluginResult.setLane().
+     */
+    public void setLane(int lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * Records the time from execStartNanos to the final result in resultLatency, and
+     * the time each result waits in the native->JS message queue in deliveryLatency.
+     */
+    void setLatencyHistograms(long execStartNanos, LatencyHistogram resultLatency, LatencyHistogram deliveryLatency) {
+        this.execStartNanos = execStartNanos;
+        this.resultLatency = resultLatency;
+        this.deliveryLatency = deliveryLatency;
+    }
+
+    void setPluginManager(PluginManager pluginManager) {
+        this.pluginManager = pluginManager;
+        pageGeneration = pluginManager.getPageGeneration();
+    }
+
+    /**
+     * Returns true if the page that made the call has since navigated or reloaded.
+     * Results sent after that are discarded, so long-running work for the call
+     * can check this to stop early.
+     */
+    public boolean isCancelled() {
+        return pluginManager != null && pluginManager.getPageGeneration() != pageGeneration;
+    }
+
+    /**
+     * Runs task on a background thread and completes this callback with its result.
+     * The return value is sent as an OK result, as for @PluginAction methods. A
+     * JSONException is sent as JSON_EXCEPTION, and any other exception as an error.
+     * If the task sends its own final result, its return value is ignored.
+     *
+     * The task is cancelled (interrupted if running) when the page navigates or the
+     * app is destroyed, in which case nothing is sent. It can also be cancelled
+     * through the returned Future.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        PluginManager manager = pluginManager != null ? pluginManager : webView.getPluginManager();
+        return manager.submitAsync(task, this);
+    }
+
     public void sendPluginResult(PluginResult pluginResult) {
+        boolean isFinalResult;
         synchronized (this) {
             if (finished) {
                 Log.w(LOG_TAG, "Attempted to send a second callback for ID: " + callbackId + "\nResult was: " + pluginResult.getMessage());
                 return;
             } else {
-                finished = !pluginResult.getKeepCallback();
+                finished = isFinalResult = !pluginResult.getKeepCallback();
             }
         }
-        webView.sendPluginResult(pluginResult, callbackId);
+        // The message queue would drop the result anyway, so skip encoding it.
+        if (isCancelled()) {
+            return;
+        }
+        if (resultLatency != null && isFinalResult) {
+            resultLatency.recordSince(execStartNanos);
+        }
+        if (coalesceResults && pluginResult.getKeepCallback()) {
+            pluginResult.setCoalesce(true);
+        }
+        if (lane != PluginResult.LANE_INTERACTIVE && pluginResult.getLane() == PluginResult.LANE_INTERACTIVE) {
+            if (pluginResult.isShared()) {
+                pluginResult = pluginResult.copyShared();
+            }
+            pluginResult.setLane(lane);
+        }
+        // Passed beside the result, which may be shared. The queue reads it on this thread.
+        NativeToJsMessageQueue.sendingDeliveryLatency.set(deliveryLatency);
+        try {
+            webView.sendPluginResult(pluginResult, callbackId);
+        } finally {
+            NativeToJsMessageQueue.sendingDeliveryLatency.set(null);
+        }
     }
 
     /**
@@ -78,7 +169,7 @@ public class CallbackContext {
      * @param message           The message to add to the success result.
      */
     public void success(String message) {
-        sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+        sendPluginResult(PluginResult.getSharedResult(PluginResult.Status.OK, message));
     }
 
     /**
@@ -112,7 +203,7 @@ public class CallbackContext {
      * Helper for success callbacks that just returns the Status.OK by default
      */
     public void success() {
-        sendPluginResult(new PluginResult(PluginResult.Status.OK));
+        sendPluginResult(PluginResult.getSharedResult(PluginResult.Status.OK));
     }
 
     /**
@@ -130,7 +221,7 @@ public class CallbackContext {
      * @param message           The message to add to the error result.
      */
     public void error(String message) {
-        sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+        sendPluginResult(PluginResult.getSharedResult(PluginResult.Status.ERROR, message));
     }
 
     /**
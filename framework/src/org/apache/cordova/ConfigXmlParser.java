@@ -66,6 +66,8 @@ public class ConfigXmlParser {
     boolean insideFeature = false;
     String service = "", pluginClass = "", paramType = "";
     boolean onload = false;
+    boolean onloadInBackground = false;
+    ExecThread execThread = ExecThread.DEFAULT;
 
     public void parse(XmlPullParser xml) {
         int eventType = -1;
@@ -102,8 +104,14 @@ public class ConfigXmlParser {
                 service = xml.getAttributeValue(null, "value");
             else if (paramType.equals("package") || paramType.equals("android-package"))
                 pluginClass = xml.getAttributeValue(null,"value");
-            else if (paramType.equals("onload"))
-                onload = "true".equals(xml.getAttributeValue(null, "value"));
+            else if (paramType.equals("onload")) {
+                // "background" declares that the plugin's initialization is thread-safe.
+                String value = xml.getAttributeValue(null, "value");
+                onloadInBackground = "background".equals(value);
+                onload = onloadInBackground || "true".equals(value);
+            }
+            else if (paramType.equals("exec-thread"))
+                execThread = parseExecThread(xml.getAttributeValue(null, "value"));
         }
         else if (strNode.equals("preference")) {
             String name = xml.getAttributeValue(null, "name").toLowerCase(Locale.ENGLISH);
@@ -121,13 +129,27 @@ public class ConfigXmlParser {
     public void handleEndTag(XmlPullParser xml) {
         String strNode = xml.getName();
         if (strNode.equals("feature")) {
-            pluginEntries.add(new PluginEntry(service, pluginClass, onload));
+            pluginEntries.add(new PluginEntry(service, pluginClass, onload, onloadInBackground, execThread));
 
             service = "";
             pluginClass = "";
             insideFeature = false;
             onload = false;
+            onloadInBackground = false;
+            execThread = ExecThread.DEFAULT;
+        }
+    }
+
+    private ExecThread parseExecThread(String value) {
+        if (value != null) {
+            try {
+                return ExecThread.valueOf(value.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                // Fall through.
+            }
         }
+        LOG.e(TAG, "Invalid exec-thread for " + service + ": " + value);
+        return ExecThread.DEFAULT;
     }
 
     private void setStartUrl(String src) {
@@ -18,94 +18,336 @@
 */
 package org.apache.cordova;
 
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import android.util.Base64;
 
 public class CordovaArgs {
-    private JSONArray baseArgs;
+    private final JSONArray baseArgs;
+    // Set when constructed from the raw exec() args. These are scanned up front for the
+    // bounds of each arg, and args are decoded into baseArgs only when accessed.
+    private final String rawArgs;
+    // Start and end offsets of each arg in rawArgs.
+    private final int[] argBounds;
+    private final int argCount;
+    // Errors from decoding args, kept so that each arg is decoded at most once.
+    // Null until there is one. Guarded by this.
+    private JSONException[] argErrors;
 
     public CordovaArgs(JSONArray args) {
         this.baseArgs = args;
+        this.rawArgs = null;
+        this.argBounds = null;
+        this.argCount = 0;
+    }
+
+    /**
+     * Throws if rawArgs is not a JSON array, so that malformed args are rejected before
+     * the action runs.
+     */
+    CordovaArgs(String rawArgs) throws JSONException {
+        int[] bounds = scanArgs(rawArgs);
+        if (bounds == null) {
+            // Not formatted as by JSON.stringify(), so leave it all to org.json.
+            this.baseArgs = new JSONArray(rawArgs);
+            this.rawArgs = null;
+            this.argBounds = null;
+            this.argCount = 0;
+            return;
+        }
+        this.baseArgs = new JSONArray();
+        this.rawArgs = rawArgs;
+        this.argBounds = bounds;
+        this.argCount = bounds.length / 2;
+        if (argCount > 0) {
+            // Args that have not been decoded are null, which no decoded value is.
+            baseArgs.put(argCount - 1, null);
+        }
     }
 
+    /**
+     * Returns the args, with the arg at index (if there is one) decoded.
+     */
+    private JSONArray baseArgs(int index) throws JSONException {
+        if (rawArgs != null && index >= 0 && index < argCount) {
+            decodeArg(index);
+        }
+        return baseArgs;
+    }
+
+    // Synchronized since args are often read on other threads than the one they arrived on.
+    private synchronized void decodeArg(int index) throws JSONException {
+        if (baseArgs.opt(index) != null) {
+            return;
+        }
+        if (argErrors != null && argErrors[index] != null) {
+            throw argErrors[index];
+        }
+        int start = argBounds[index * 2];
+        int end = argBounds[index * 2 + 1];
+        Object value;
+        if (isUnescapedString(start, end)) {
+            value = rawArgs.substring(start + 1, end - 1);
+        } else {
+            try {
+                value = new JSONTokener(rawArgs.substring(start, end)).nextValue();
+            } catch (JSONException e) {
+                if (argErrors == null) {
+                    argErrors = new JSONException[argCount];
+                }
+                argErrors[index] = e;
+                throw e;
+            }
+        }
+        baseArgs.put(index, value);
+    }
+
+    // Malformed args look empty to the opt methods, while the get methods throw.
+    private JSONArray optBaseArgs(int index) {
+        try {
+            return baseArgs(index);
+        } catch (JSONException e) {
+            return new JSONArray();
+        }
+    }
+
+    /**
+     * Returns the start and end offsets of each arg in s, or null if s is not a JSON array
+     * formatted as by JSON.stringify(). Only strings are checked, as org.json would, so the
+     * contents of objects and arrays are not checked until they are decoded.
+     */
+    private static int[] scanArgs(String s) {
+        int len = s.length();
+        int i = skipWhitespace(s, 0);
+        if (i == len || s.charAt(i) != '[') {
+            return null;
+        }
+        int[] bounds = new int[16];
+        int count = 0;
+        i = skipWhitespace(s, i + 1);
+        if (i < len && s.charAt(i) == ']') {
+            i++;
+        } else {
+            while (true) {
+                int end = skipValue(s, i);
+                if (end < 0) {
+                    return null;
+                }
+                if (count * 2 == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                }
+                bounds[count * 2] = i;
+                bounds[count * 2 + 1] = end;
+                count++;
+                i = skipWhitespace(s, end);
+                if (i == len) {
+                    return null;
+                }
+                char c = s.charAt(i);
+                if (c == ']') {
+                    i++;
+                    break;
+                } else if (c != ',') {
+                    return null;
+                }
+                i = skipWhitespace(s, i + 1);
+            }
+        }
+        if (skipWhitespace(s, i) != len) {
+            return null;
+        }
+        return Arrays.copyOf(bounds, count * 2);
+    }
+
+    private static int skipWhitespace(String s, int i) {
+        int len = s.length();
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index after the value that starts at i, or -1 if there is none.
+     */
+    private static int skipValue(String s, int i) {
+        int len = s.length();
+        if (i == len) {
+            return -1;
+        }
+        char c = s.charAt(i);
+        if (c == '"') {
+            return skipString(s, i);
+        }
+        if (c == '[' || c == '{') {
+            int depth = 0;
+            while (i < len) {
+                c = s.charAt(i);
+                if (c == '"') {
+                    i = skipString(s, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    continue;
+                }
+                if (c == '[' || c == '{') {
+                    depth++;
+                } else if ((c == ']' || c == '}') && --depth == 0) {
+                    return i + 1;
+                }
+                i++;
+            }
+            return -1;
+        }
+        // A number, true, false or null.
+        int start = i;
+        while (i < len && (c = s.charAt(i)) != ',' && c != ']' && c > ' ') {
+            i++;
+        }
+        return i == start ? -1 : i;
+    }
+
+    /**
+     * Returns the index after the string whose opening quote is at i, or -1 if it is unterminated
+     * or has a malformed unicode escape.
+     */
+    private static int skipString(String s, int i) {
+        int len = s.length();
+        for (i++; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                i++;
+                if (i < len && s.charAt(i) == 'u') {
+                    if (i + 4 >= len) {
+                        return -1;
+                    }
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        if (Character.digit(s.charAt(j), 16) < 0) {
+                            return -1;
+                        }
+                    }
+                    i += 4;
+                }
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isUnescapedString(int start, int end) {
+        if (rawArgs.charAt(start) != '"') {
+            return false;
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            if (rawArgs.charAt(i) == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
 
     // Pass through the basics to the base args.
     public Object get(int index) throws JSONException {
-        return baseArgs.get(index);
+        return baseArgs(index).get(index);
     }
 
     public boolean getBoolean(int index) throws JSONException {
-        return baseArgs.getBoolean(index);
+        return baseArgs(index).getBoolean(index);
     }
 
     public double getDouble(int index) throws JSONException {
-        return baseArgs.getDouble(index);
+        return baseArgs(index).getDouble(index);
     }
 
     public int getInt(int index) throws JSONException {
-        return baseArgs.getInt(index);
+        return baseArgs(index).getInt(index);
     }
 
     public JSONArray getJSONArray(int index) throws JSONException {
-        return baseArgs.getJSONArray(index);
+        return baseArgs(index).getJSONArray(index);
     }
 
     public JSONObject getJSONObject(int index) throws JSONException {
-        return baseArgs.getJSONObject(index);
+        return baseArgs(index).getJSONObject(index);
     }
 
     public long getLong(int index) throws JSONException {
-        return baseArgs.getLong(index);
+        return baseArgs(index).getLong(index);
     }
 
     public String getString(int index) throws JSONException {
-        return baseArgs.getString(index);
+        return baseArgs(index).getString(index);
     }
 
 
     public Object opt(int index) {
-        return baseArgs.opt(index);
+        return optBaseArgs(index).opt(index);
     }
 
     public boolean optBoolean(int index) {
-        return baseArgs.optBoolean(index);
+        return optBaseArgs(index).optBoolean(index);
     }
 
     public double optDouble(int index) {
-        return baseArgs.optDouble(index);
+        return optBaseArgs(index).optDouble(index);
     }
 
     public int optInt(int index) {
-        return baseArgs.optInt(index);
+        return optBaseArgs(index).optInt(index);
     }
 
     public JSONArray optJSONArray(int index) {
-        return baseArgs.optJSONArray(index);
+        return optBaseArgs(index).optJSONArray(index);
     }
 
     public JSONObject optJSONObject(int index) {
-        return baseArgs.optJSONObject(index);
+        return optBaseArgs(index).optJSONObject(index);
     }
 
     public long optLong(int index) {
-        return baseArgs.optLong(index);
+        return optBaseArgs(index).optLong(index);
     }
 
     public String optString(int index) {
-        return baseArgs.optString(index);
+        return optBaseArgs(index).optString(index);
     }
 
     public boolean isNull(int index) {
-        return baseArgs.isNull(index);
+        return optBaseArgs(index).isNull(index);
     }
 
 
     // The interesting custom helpers.
+
+    /**
+     * Same as getString(), except that a string arg with no escapes is returned as
+     * a view of the raw exec() args rather than a copy. Use this to read or forward
+     * large strings without copying them.
+     */
+    public CharSequence getCharSequence(int index) throws JSONException {
+        if (rawArgs != null && index >= 0 && index < argCount) {
+            int start = argBounds[index * 2];
+            int end = argBounds[index * 2 + 1];
+            if (isUnescapedString(start, end)) {
+                return CharBuffer.wrap(rawArgs, start + 1, end - 1);
+            }
+        }
+        return getString(index);
+    }
+
     public byte[] getArrayBuffer(int index) throws JSONException {
-        String encoded = baseArgs.getString(index);
+        String encoded = baseArgs(index).getString(index);
         return Base64.decode(encoded, Base64.DEFAULT);
     }
 }
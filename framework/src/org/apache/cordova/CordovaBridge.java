@@ -19,6 +19,7 @@
 package org.apache.cordova;
 
 import java.security.SecureRandom;
+import java.util.ArrayList;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -70,6 +71,49 @@ public class CordovaBridge {
         }
     }
 
+    /**
+     * Runs several exec() calls in one crossing of the bridge, in order, and returns
+     * the messages they produced. Each call is four fields (service, action,
+     * callbackId, arguments), each encoded as "<length> <value>", all concatenated.
+     */
+    public String jsExecBatch(int bridgeSecret, String batch) throws JSONException, IllegalAccessException {
+        if (!verifySecret("execBatch()", bridgeSecret)) {
+            return null;
+        }
+        // See jsExec().
+        if (batch == null) {
+            return "@Null arguments.";
+        }
+
+        jsMessageQueue.setPaused(true);
+        try {
+            CordovaResourceApi.jsThread = Thread.currentThread();
+
+            ArrayList<String> fields = new ArrayList<String>();
+            if (splitExecBatch(batch, fields)) {
+                for (int i = 0; i < fields.size(); i += 4) {
+                    pluginManager.exec(fields.get(i), fields.get(i + 1), fields.get(i + 2), fields.get(i + 3));
+                }
+            } else {
+                // None of the calls are run, and those that could be read are failed.
+                Log.e(LOG_TAG, "Malformed execBatch() of " + batch.length() + " chars");
+                for (int i = 0; i < fields.size(); i += 4) {
+                    jsMessageQueue.addPluginResult(new PluginResult(PluginResult.Status.ERROR, "Malformed exec() batch"), fields.get(i + 2));
+                }
+            }
+            String ret = null;
+            if (!NativeToJsMessageQueue.DISABLE_EXEC_CHAINING) {
+                ret = jsMessageQueue.popAndEncode(false);
+            }
+            return ret;
+        } catch (Throwable e) {
+            Log.e(LOG_TAG, "Uncaught exception from execBatch()", e);
+            return "";
+        } finally {
+            jsMessageQueue.setPaused(false);
+        }
+    }
+
     public void jsSetNativeToJsBridgeMode(int bridgeSecret, int value) throws IllegalAccessException {
         if (!verifySecret("setNativeToJsBridgeMode()", bridgeSecret)) {
             return;
@@ -123,19 +167,94 @@ public class CordovaBridge {
         clearBridgeSecret();        
     }
 
+    /**
+     * Splits a batch from jsExecBatch() into its fields, four per call. If the batch
+     * is malformed, returns false, leaving only the fields of the calls before the
+     * malformed one in fields.
+     */
+    private static boolean splitExecBatch(String batch, ArrayList<String> fields) {
+        int i = 0;
+        while (i < batch.length()) {
+            for (int j = 0; j < 4; ++j) {
+                int spaceIdx = batch.indexOf(' ', i);
+                int len = -1;
+                if (spaceIdx > i) {
+                    try {
+                        len = Integer.parseInt(batch.substring(i, spaceIdx));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+                if (len < 0 || len > batch.length() - spaceIdx - 1) {
+                    fields.subList(fields.size() - j, fields.size()).clear();
+                    return false;
+                }
+                fields.add(batch.substring(spaceIdx + 1, spaceIdx + 1 + len));
+                i = spaceIdx + 1 + len;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles an exec() made through the prompt bridge. The header is built by
+     * cordova.js as "gap:" + JSON.stringify([bridgeSecret, service, action, callbackId]).
+     * Since none of these contain escapes in practice, they are sliced out directly
+     * rather than by building a JSONArray. Anything unexpected goes through org.json.
+     */
+    private String jsExecFromPrompt(String header, String arguments) throws JSONException, IllegalAccessException {
+        int secretEnd = header.indexOf(',', 5);
+        int serviceEnd = secretEnd < 0 ? -1 : endOfJsonString(header, secretEnd + 1, ',');
+        int actionEnd = serviceEnd < 0 ? -1 : endOfJsonString(header, serviceEnd + 2, ',');
+        int callbackIdEnd = actionEnd < 0 ? -1 : endOfJsonString(header, actionEnd + 2, ']');
+        if (header.length() <= 5 || header.charAt(4) != '[' || callbackIdEnd != header.length() - 2 || header.indexOf('\\') >= 0) {
+            JSONArray array = new JSONArray(header.substring(4));
+            return jsExec(array.getInt(0), array.getString(1), array.getString(2), array.getString(3), arguments);
+        }
+        int bridgeSecret = Integer.parseInt(header.substring(5, secretEnd));
+        String service = header.substring(secretEnd + 2, serviceEnd);
+        String action = header.substring(serviceEnd + 3, actionEnd);
+        String callbackId = header.substring(actionEnd + 3, callbackIdEnd);
+        return jsExec(bridgeSecret, service, action, callbackId, arguments);
+    }
+
+    /**
+     * Returns the index of the closing quote of the JSON string starting at start,
+     * or -1 if there is no string there or it is not followed by terminator.
+     */
+    private static int endOfJsonString(String s, int start, char terminator) {
+        if (start >= s.length() || s.charAt(start) != '"') {
+            return -1;
+        }
+        int end = s.indexOf('"', start + 1);
+        if (end < 0 || end + 1 >= s.length() || s.charAt(end + 1) != terminator) {
+            return -1;
+        }
+        return end;
+    }
+
     public String promptOnJsPrompt(String origin, String message, String defaultValue) {
         if (defaultValue != null && defaultValue.length() > 3 && defaultValue.startsWith("gap:")) {
-            JSONArray array;
             try {
-                array = new JSONArray(defaultValue.substring(4));
-                int bridgeSecret = array.getInt(0);
-                String service = array.getString(1);
-                String action = array.getString(2);
-                String callbackId = array.getString(3);
-                String r = jsExec(bridgeSecret, service, action, callbackId, message);
+                String r = jsExecFromPrompt(defaultValue, message);
+                return r == null ? "" : r;
+            } catch (JSONException e) {
+                e.printStackTrace();
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+            return "";
+        }
+        else if (defaultValue != null && defaultValue.startsWith("gap_batch:")) {
+            try {
+                int bridgeSecret = Integer.parseInt(defaultValue.substring(10));
+                String r = jsExecBatch(bridgeSecret, message);
                 return r == null ? "" : r;
             } catch (JSONException e) {
                 e.printStackTrace();
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
             } catch (IllegalAccessException e) {
                 e.printStackTrace();
             }
@@ -153,6 +272,21 @@ public class CordovaBridge {
             }
             return "";
         }
+        // cordova.js was able to fetch the binary payload probe, or later failed to fetch a payload.
+        else if (defaultValue != null && defaultValue.startsWith("gap_binary:")) {
+            try {
+                int bridgeSecret = Integer.parseInt(defaultValue.substring(11));
+                if (verifySecret("binary payload confirmation", bridgeSecret)) {
+                    // After a failure, the page is sent text again.
+                    jsMessageQueue.setBinaryPayloadsConfirmed(!"failed".equals(message));
+                }
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+            return "";
+        }
         // Polling for JavaScript messages 
         else if (defaultValue != null && defaultValue.startsWith("gap_poll:")) {
             int bridgeSecret = Integer.parseInt(defaultValue.substring(9));
@@ -171,6 +305,9 @@ public class CordovaBridge {
                 // Enable the bridge
                 int bridgeMode = Integer.parseInt(defaultValue.substring(9));
                 jsMessageQueue.setBridgeMode(bridgeMode);
+                // cordova.js asks for the binary wire format when it can decode it.
+                // Older versions send an empty message, and get the text format.
+                jsMessageQueue.setBinaryWireFormatEnabled("binary".equals(message));
                 // Tell JS the bridge secret.
                 int secret = generateBridgeSecret();
                 return ""+secret;
@@ -31,6 +31,9 @@ import android.net.Uri;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Plugins must extend this class and override one of the execute methods.
@@ -40,6 +43,8 @@ public class CordovaPlugin {
     public CordovaInterface cordova;
     protected CordovaPreferences preferences;
     private String serviceName;
+    private Boolean overridesJSONArrayExecute;
+    private PluginActionTable actionTable;
 
     /**
      * Call this after constructing to initialize the plugin.
@@ -51,6 +56,7 @@ public class CordovaPlugin {
         this.cordova = cordova;
         this.webView = webView;
         this.preferences = preferences;
+        this.actionTable = PluginActionTable.forClass(getClass());
         initialize(cordova, webView);
         pluginInitialize();
     }
@@ -85,16 +91,47 @@ public class CordovaPlugin {
      * To run on the UI thread, use:
      *     cordova.getActivity().runOnUiThread(runnable);
      *
+     * Actions that have a @PluginAction method are dispatched to it. Others
+     * are passed on to the other execute() methods.
+     *
      * @param action          The action to execute.
      * @param rawArgs         The exec() arguments in JSON form.
      * @param callbackContext The callback context used when calling back into JavaScript.
      * @return                Whether the action was valid.
      */
     public boolean execute(String action, String rawArgs, CallbackContext callbackContext) throws JSONException {
+        // Throws before the action runs if the args are malformed.
+        CordovaArgs cordovaArgs = new CordovaArgs(rawArgs);
+        if (actionTable != null && actionTable.dispatch(this, action, cordovaArgs, callbackContext)) {
+            return true;
+        }
+        if (!overridesJSONArrayExecute()) {
+            // The JSONArray would only be wrapped, so skip it and decode args only if they are read.
+            return execute(action, cordovaArgs, callbackContext);
+        }
         JSONArray args = new JSONArray(rawArgs);
         return execute(action, args, callbackContext);
     }
 
+    /**
+     * Returns the thread declared by @PluginAction for the given action, or DEFAULT.
+     */
+    ExecThread getExecThread(String action) {
+        return actionTable == null ? ExecThread.DEFAULT : actionTable.getExecThread(action);
+    }
+
+    private boolean overridesJSONArrayExecute() {
+        if (overridesJSONArrayExecute == null) {
+            try {
+                Method method = getClass().getMethod("execute", String.class, JSONArray.class, CallbackContext.class);
+                overridesJSONArrayExecute = method.getDeclaringClass() != CordovaPlugin.class;
+            } catch (NoSuchMethodException e) {
+                overridesJSONArrayExecute = true;
+            }
+        }
+        return overridesJSONArrayExecute;
+    }
+
     /**
      * Executes the request.
      *
@@ -239,6 +276,18 @@ public class CordovaPlugin {
         return shouldAllowNavigation(url);
     }
 
+    /**
+     * Returns whether PluginManager may cache the results of shouldAllowRequest(),
+     * shouldAllowNavigation() and shouldAllowBridgeAccess(). Return true only if they
+     * depend on nothing but the URL's scheme, authority and path up to its last "/".
+     * If the policy changes later, call PluginManager.clearUrlDecisionCache().
+     *
+     * Returns false by default.
+     */
+    public boolean isUrlDecisionCacheable() {
+        return false;
+    }
+
     /**
      * Hook for blocking the launching of Intents by the Cordova application.
      *
@@ -321,6 +370,15 @@ public class CordovaPlugin {
      */
     public void onReset() {
     }
+
+    /**
+     * Runs task on a background thread, cancelling it if it is still pending or
+     * running when the page navigates or the app is destroyed. Exceptions from it
+     * are logged. To send the task's result to JS, use CallbackContext.submit().
+     */
+    protected <T> Future<T> submit(Callable<T> task) {
+        return webView.getPluginManager().submitAsync(task, null);
+    }
     
     /**
      * Called when the system received an HTTP authentication request. Plugin can use
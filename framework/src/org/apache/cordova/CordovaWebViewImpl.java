@@ -102,6 +102,23 @@ public class CordovaWebViewImpl implements CordovaWebView {
         pluginManager = new PluginManager(this, this.cordova, pluginEntries);
         resourceApi = new CordovaResourceApi(engine.getView().getContext(), pluginManager);
         nativeToJsMessageQueue = new NativeToJsMessageQueue();
+        // Either "frame" or a number of milliseconds to batch messages for.
+        String flushDelay = preferences.getString("NativeToJsFlushDelay", null);
+        if ("frame".equalsIgnoreCase(flushDelay)) {
+            nativeToJsMessageQueue.setFlushDelay(NativeToJsMessageQueue.FLUSH_DELAY_NEXT_FRAME);
+        } else if (flushDelay != null) {
+            nativeToJsMessageQueue.setFlushDelay(preferences.getInteger("NativeToJsFlushDelay", 0));
+        }
+        nativeToJsMessageQueue.setMaxChunkSize(preferences.getInteger("NativeToJsChunkSize", 0));
+        nativeToJsMessageQueue.setCapacity(preferences.getInteger("NativeToJsQueueMaxMessages", 0),
+                preferences.getInteger("NativeToJsQueueMaxBytes", 0));
+        // One of "block" (default), "drop-oldest" or "fail".
+        String overflowPolicy = preferences.getString("NativeToJsQueueOverflowPolicy", "block");
+        if ("drop-oldest".equalsIgnoreCase(overflowPolicy)) {
+            nativeToJsMessageQueue.setOverflowPolicy(NativeToJsMessageQueue.OVERFLOW_DROP_OLDEST_KEEP_CALLBACK);
+        } else if ("fail".equalsIgnoreCase(overflowPolicy)) {
+            nativeToJsMessageQueue.setOverflowPolicy(NativeToJsMessageQueue.OVERFLOW_FAIL_FAST);
+        }
         nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
         nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.LoadUrlBridgeMode(engine, cordova));
 
@@ -307,6 +324,16 @@ public class CordovaWebViewImpl implements CordovaWebView {
         nativeToJsMessageQueue.addPluginResult(cr, callbackId);
     }
 
+    /**
+     * Returns how full the queue of results waiting to be sent to JS is, where 1
+     * means full. Always 0 unless the NativeToJsQueueMaxMessages or
+     * NativeToJsQueueMaxBytes preference is set. Not part of CordovaWebView, so
+     * that existing implementations of it keep compiling.
+     */
+    public float getNativeToJsQueuePressure() {
+        return nativeToJsMessageQueue.getPressure();
+    }
+
     @Override
     public PluginManager getPluginManager() {
         return pluginManager;
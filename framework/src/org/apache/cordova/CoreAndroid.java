@@ -64,73 +64,14 @@ class CoreAndroid extends CordovaPlugin {
         this.initTelephonyReceiver();
     }
 
-    /**
-     * Executes the request and returns PluginResult.
-     *
-     * @param action            The action to execute.
-     * @param args              JSONArry of arguments for the plugin.
-     * @param callbackContext   The callback context from which we were invoked.
-     * @return                  A PluginResult object with a status and message.
-     */
-    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
-        PluginResult.Status status = PluginResult.Status.OK;
-        String result = "";
-
-        try {
-            if (action.equals("clearCache")) {
-                this.clearCache();
-            }
-            else if (action.equals("show")) {
-                // This gets called from JavaScript onCordovaReady to show the webview.
-                // I recommend we change the name of the Message as spinner/stop is not
-                // indicative of what this actually does (shows the webview).
-                cordova.getActivity().runOnUiThread(new Runnable() {
-                    public void run() {
-                        webView.getPluginManager().postMessage("spinner", "stop");
-                    }
-                });
-            }
-            else if (action.equals("loadUrl")) {
-                this.loadUrl(args.getString(0), args.optJSONObject(1));
-            }
-            else if (action.equals("cancelLoadUrl")) {
-                //this.cancelLoadUrl();
-            }
-            else if (action.equals("clearHistory")) {
-                this.clearHistory();
-            }
-            else if (action.equals("backHistory")) {
-                this.backHistory();
-            }
-            else if (action.equals("overrideButton")) {
-                this.overrideButton(args.getString(0), args.getBoolean(1));
-            }
-            else if (action.equals("overrideBackbutton")) {
-                this.overrideBackbutton(args.getBoolean(0));
-            }
-            else if (action.equals("exitApp")) {
-                this.exitApp();
-            }
-			else if (action.equals("messageChannel")) {
-                messageChannel = callbackContext;
-                return true;
-            }
-
-            callbackContext.sendPluginResult(new PluginResult(status, result));
-            return true;
-        } catch (JSONException e) {
-            callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
-            return false;
-        }
-    }
-
     //--------------------------------------------------------------------------
-    // LOCAL METHODS
+    // ACTIONS
     //--------------------------------------------------------------------------
 
     /**
      * Clear the resource cache.
      */
+    @PluginAction
     public void clearCache() {
         cordova.getActivity().runOnUiThread(new Runnable() {
             public void run() {
@@ -146,8 +87,12 @@ class CoreAndroid extends CordovaPlugin {
      * @param props			Properties that can be passed in to the Cordova activity (i.e. loadingDialog, wait, ...)
      * @throws JSONException
      */
+    @PluginAction
     public void loadUrl(String url, JSONObject props) throws JSONException {
         LOG.d("App", "App.loadUrl("+url+","+props+")");
+        if (url == null) {
+            throw new JSONException("loadUrl requires a url");
+        }
         int wait = 0;
         boolean openExternal = false;
         boolean clearHistory = false;
@@ -199,9 +144,29 @@ class CoreAndroid extends CordovaPlugin {
         this.webView.showWebPage(url, openExternal, clearHistory, params);
     }
 
+    /**
+     * Show the webview. This gets called from JavaScript onCordovaReady.
+     */
+    @PluginAction
+    public void show() {
+        // I recommend we change the name of the Message as spinner/stop is not
+        // indicative of what this actually does (shows the webview).
+        cordova.getActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                webView.getPluginManager().postMessage("spinner", "stop");
+            }
+        });
+    }
+
+    @PluginAction
+    public void cancelLoadUrl() {
+        //this.cancelLoadUrl();
+    }
+
     /**
      * Clear page history for the app.
      */
+    @PluginAction
     public void clearHistory() {
         cordova.getActivity().runOnUiThread(new Runnable() {
             public void run() {
@@ -214,6 +179,7 @@ class CoreAndroid extends CordovaPlugin {
      * Go to previous page displayed.
      * This is the same as pressing the backbutton on Android device.
      */
+    @PluginAction
     public void backHistory() {
         cordova.getActivity().runOnUiThread(new Runnable() {
             public void run() {
@@ -228,6 +194,7 @@ class CoreAndroid extends CordovaPlugin {
      *
      * @param override		T=override, F=cancel override
      */
+    @PluginAction
     public void overrideBackbutton(boolean override) {
         LOG.i("App", "WARNING: Back Button Default Behavior will be overridden.  The backbutton event will be fired!");
         webView.setButtonPlumbedToJs(KeyEvent.KEYCODE_BACK, override);
@@ -240,7 +207,11 @@ class CoreAndroid extends CordovaPlugin {
      * @param button        volumeup, volumedown
      * @param override      T=override, F=cancel override
      */
-    public void overrideButton(String button, boolean override) {
+    @PluginAction
+    public void overrideButton(String button, boolean override) throws JSONException {
+        if (button == null) {
+            throw new JSONException("overrideButton requires a button");
+        }
         LOG.i("App", "WARNING: Volume Button Default Behavior will be overridden.  The volume event will be fired!");
         if (button.equals("volumeup")) {
             webView.setButtonPlumbedToJs(KeyEvent.KEYCODE_VOLUME_UP, override);
@@ -262,10 +233,50 @@ class CoreAndroid extends CordovaPlugin {
     /**
      * Exit the Android application.
      */
+    @PluginAction
     public void exitApp() {
         this.webView.getPluginManager().postMessage("exit", null);
     }
 
+    /**
+     * Debugging aid that returns the exec() latency histograms of all plugins.
+     * See PluginManager.getExecLatencies().
+     */
+    @PluginAction
+    public JSONObject getExecLatencies() {
+        return webView.getPluginManager().getExecLatencies();
+    }
+
+    /**
+     * Clears the exec() latency histograms of all plugins.
+     */
+    @PluginAction
+    public void resetExecLatencies() {
+        webView.getPluginManager().resetExecLatencies();
+    }
+
+    /**
+     * Actions without a @PluginAction method succeed without doing anything, as
+     * they did before CoreAndroid used @PluginAction.
+     */
+    @Override
+    public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) {
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, ""));
+        return true;
+    }
+
+    /**
+     * Keep the callback of the channel that lifecycle events are sent through.
+     */
+    @PluginAction
+    public void messageChannel(CallbackContext callbackContext) {
+        messageChannel = callbackContext;
+    }
+
+    //--------------------------------------------------------------------------
+    // LOCAL METHODS
+    //--------------------------------------------------------------------------
+
 
     /**
      * Listen for telephony events: RINGING, OFFHOOK and IDLE
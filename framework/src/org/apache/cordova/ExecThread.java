@@ -0,0 +1,39 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+/**
+ * The thread that a plugin's exec() calls are run on. This is declared per plugin
+ * with an "exec-thread" param in the plugin's config.xml <feature>, and per action
+ * with @PluginAction(thread = ...). The action's value takes precedence.
+ *
+ * Results are sent through the call's CallbackContext, whichever thread it runs on.
+ */
+public enum ExecThread {
+    /** Per action: use the plugin's value. Per plugin: same as BRIDGE. */
+    DEFAULT,
+    /** The thread that the JS bridge call arrived on (WebCore / JavaBridge). */
+    BRIDGE,
+    /** The UI thread. */
+    UI,
+    /** A bounded pool of background threads shared by all plugins. Calls may run concurrently. */
+    BACKGROUND,
+    /** The background pool, but one call at a time per plugin, in the order they were made. */
+    SERIAL
+}
@@ -0,0 +1,173 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Serializes org.json trees directly into a StringBuilder, producing the same
+ * output as their toString() without building an intermediate String. length()
+ * returns the number of chars that write() will append, so that the destination
+ * can be sized exactly.
+ */
+final class JsonWriter {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private JsonWriter() {
+    }
+
+    static int length(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            int ret = 2;
+            boolean first = true;
+            for (Iterator<?> it = obj.keys(); it.hasNext(); ) {
+                String key = (String) it.next();
+                ret += (first ? 0 : 1) + stringLength(key) + 1 + length(obj.opt(key));
+                first = false;
+            }
+            return ret;
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            int len = array.length();
+            int ret = 2 + Math.max(0, len - 1);
+            for (int i = 0; i < len; ++i) {
+                ret += length(array.opt(i));
+            }
+            return ret;
+        } else if (value == null || value == JSONObject.NULL) {
+            return 4;
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 4 : 5;
+        } else if (value instanceof Number) {
+            return numberToString((Number) value).length();
+        }
+        return stringLength(value.toString());
+    }
+
+    static void write(StringBuilder sb, Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            sb.append('{');
+            boolean first = true;
+            for (Iterator<?> it = obj.keys(); it.hasNext(); ) {
+                String key = (String) it.next();
+                if (!first) {
+                    sb.append(',');
+                }
+                writeString(sb, key);
+                sb.append(':');
+                write(sb, obj.opt(key));
+                first = false;
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            sb.append('[');
+            for (int i = 0, len = array.length(); i < len; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                write(sb, array.opt(i));
+            }
+            sb.append(']');
+        } else if (value == null || value == JSONObject.NULL) {
+            sb.append("null");
+        } else if (value instanceof Boolean) {
+            sb.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Number) {
+            sb.append(numberToString((Number) value));
+        } else {
+            writeString(sb, value.toString());
+        }
+    }
+
+    private static String numberToString(Number number) {
+        try {
+            return JSONObject.numberToString(number);
+        } catch (JSONException e) {
+            // Non-finite numbers can't be put into a tree in the first place.
+            return "null";
+        }
+    }
+
+    private static int stringLength(String s) {
+        int ret = 2;
+        for (int i = 0, len = s.length(); i < len; ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                case '\t':
+                case '\b':
+                case '\n':
+                case '\r':
+                case '\f':
+                    ret += 2;
+                    break;
+                default:
+                    ret += c <= 0x1F ? 6 : 1;
+            }
+        }
+        return ret;
+    }
+
+    private static void writeString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0, len = s.length(); i < len; ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append('\\').append(c);
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        sb.append("\\u00")
+                          .append(HEX_DIGITS[c >> 4])
+                          .append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,156 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A fixed-size histogram of durations, in microseconds. Buckets are log-linear:
+ * each power of two is split into SUB_BUCKET_COUNT buckets, so that any recorded
+ * value is reported to within 12.5% while covering 1us to ~71 minutes in 240 buckets.
+ * Recording is lock-free and allocation-free, so it can be left enabled in production.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Larger values are counted as MAX_VALUE.
+    private static final long MAX_VALUE = (1L << 32) - 1;
+    private static final int BUCKET_COUNT = (32 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the time elapsed since startNanos, a value of System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Records a duration in microseconds.
+     */
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(getBucketIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long prevMax = max.get();
+        while (value > prevMax && !max.compareAndSet(prevMax, value)) {
+            prevMax = max.get();
+        }
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Returns the smallest value counted by the given bucket.
+     */
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        return (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+    }
+
+    private static long getBucketUpperBound(int index) {
+        return index + 1 == BUCKET_COUNT ? MAX_VALUE : getBucketLowerBound(index + 1) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the largest recorded value, in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values, in microseconds.
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Returns the value, in microseconds, that the given percentage (0-100) of
+     * recorded values are at or below. Reported as the upper bound of its bucket.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns a summary of the histogram, with all times in microseconds.
+     */
+    public JSONObject toJSONObject() {
+        JSONObject ret = new JSONObject();
+        try {
+            ret.put("count", getCount());
+            ret.put("mean", getMean());
+            ret.put("p50", getPercentile(50));
+            ret.put("p90", getPercentile(90));
+            ret.put("p99", getPercentile(99));
+            ret.put("max", getMax());
+        } catch (JSONException e) {
+            // Not possible for numeric values.
+            throw new RuntimeException(e);
+        }
+        return ret;
+    }
+}
@@ -18,13 +18,37 @@
 */
 package org.apache.cordova;
 
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 
 /**
  * Holds the list of messages to be sent to the WebView.
+ *
+ * Messages can be added from any thread without blocking: producers push onto
+ * a lock-free stack, which is claimed in a single atomic swap by whichever
+ * thread is draining the queue. Draining (popAndEncode(), popAndEncodeAsJs())
+ * and bridge mode changes are serialized on the queue's monitor, which
+ * producers never take.
+ *
+ * Claimed messages are sorted into lanes (see PluginResult.setLane()). Each
+ * drain sends interactive messages before bulk ones, but never sends a message
+ * ahead of an earlier one for the same callback.
  */
 public class NativeToJsMessageQueue {
     private static final String LOG_TAG = "JsMessageQueue";
@@ -39,20 +63,184 @@ public class NativeToJsMessageQueue {
     static final boolean DISABLE_EXEC_CHAINING = false;
 
     // Arbitrarily chosen upper limit for how much data to send to JS in one shot.
-    // This currently only chops up on message boundaries. It may be useful
-    // to allow it to break up messages.
+    // This chops up on message boundaries. To break up individual messages,
+    // use setMaxChunkSize().
     private static int MAX_PAYLOAD_SIZE = 50 * 1024 * 10240;
+
+    // Marks a message fragment that is continued by the next message. See setMaxChunkSize().
+    private static final char CHUNK_MARKER = '~';
+
+    // Initial size of payloadBuffer. It grows as needed, but is shrunk back to this
+    // after any flush that needed more than MAX_RETAINED_PAYLOAD_BUFFER_SIZE chars.
+    private static final int INITIAL_PAYLOAD_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_RETAINED_PAYLOAD_BUFFER_SIZE = 256 * 1024;
+
+    // Payloads smaller than this many chars are sent as text even when the binary
+    // wire format is enabled, since they are cheap to parse and fetching the
+    // binary batch costs a request. See setMinBinaryBatchSize().
+    private static final int DEFAULT_MIN_BINARY_BATCH_SIZE = 4 * 1024;
+
+    // Kind of the message that stands in for a batch sent in the binary wire format.
+    private static final char BINARY_BATCH_MARKER = 'W';
+
+    /**
+     * Value for setFlushDelay() that aligns UI thread flushes with the next display frame.
+     */
+    public static final int FLUSH_DELAY_NEXT_FRAME = -1;
+
+    /**
+     * Values for setOverflowPolicy(), which say what happens to a message that
+     * arrives when the queue is at the capacity given to setCapacity().
+     */
+    public static final int OVERFLOW_BLOCK_PRODUCER = 0;
+    public static final int OVERFLOW_DROP_OLDEST_KEEP_CALLBACK = 1;
+    public static final int OVERFLOW_FAIL_FAST = 2;
+
+    // Longest that OVERFLOW_BLOCK_PRODUCER makes a thread wait. After this, the
+    // message is queued anyway, so that a page that has stopped polling (e.g.
+    // a stuck alert()) cannot hang plugin threads forever.
+    private static final long MAX_PRODUCER_BLOCK_MILLIS = 5000;
+
+    /**
+     * URL prefix under which binary payloads are served. See setBinaryPayloadsEnabled().
+     */
+    public static final String BINARY_PAYLOAD_URL_PREFIX = "https://cordova-bridge.invalid/payload/";
+
+    /**
+     * URL that cordova.js fetches to find out whether binary payloads reach it.
+     * See setBinaryPayloadsConfirmed().
+     */
+    public static final String BINARY_PAYLOAD_PROBE_URL = BINARY_PAYLOAD_URL_PREFIX + "probe";
+    private static final byte[] BINARY_PAYLOAD_PROBE = new byte[] { 'c', 'd', 'v', 1 };
     
     /**
      * When true, the active listener is not fired upon enqueue. When set to false,
      * the active listener will be fired if the queue is non-empty. 
      */
-    private boolean paused;
-    
+    private volatile boolean paused;
+
     /**
-     * The list of JavaScript statements to be sent to JavaScript.
+     * Set by CallbackContext while it sends a result, to the histogram that
+     * records the result's time in the queue. Results are enqueued on the sending
+     * thread, and may be shared (see PluginResult.getSharedResult()), so this is passed
+     * beside them rather than stored on them.
      */
-    private final LinkedList<JsMessage> queue = new LinkedList<JsMessage>();
+    static final ThreadLocal<LatencyHistogram> sendingDeliveryLatency = new ThreadLocal<LatencyHistogram>();
+
+    /**
+     * Messages that have been enqueued but not yet claimed by a drain, newest first.
+     * Linked through JsMessage.next.
+     */
+    private final AtomicReference<JsMessage> incoming = new AtomicReference<JsMessage>();
+
+    /**
+     * Claimed messages waiting to be sent, oldest first, one list per lane.
+     * Only accessed while holding the queue's monitor.
+     */
+    private final MessageList interactiveMessages = new MessageList();
+    private final MessageList bulkMessages = new MessageList();
+
+    /**
+     * callbackId -> number of its messages in bulkMessages. Later results for
+     * these callbacks go in the bulk lane as well, to stay in order.
+     * Only accessed while holding the queue's monitor.
+     */
+    private final HashMap<String, Integer> bulkCallbackIds = new HashMap<String, Integer>();
+
+    /**
+     * Number of messages in incoming + pending. Lets isEmpty() be answered from any thread.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Incremented by reset(). Messages stamped with an older value were enqueued
+     * for a previous page and are dropped when claimed.
+     */
+    private volatile int generation;
+
+    /**
+     * callbackId -> the most recent coalescing result for that callback that has
+     * not yet been encoded into a payload. Later coalescing results for the same
+     * callback replace its contents rather than being enqueued. See PluginResult.setCoalesce().
+     */
+    private final ConcurrentHashMap<String, JsMessage> coalescingMessages = new ConcurrentHashMap<String, JsMessage>();
+
+    /**
+     * Reused by popAndEncode() to assemble payloads. Only accessed while holding
+     * the queue's monitor.
+     */
+    private char[] payloadBuffer = new char[INITIAL_PAYLOAD_BUFFER_SIZE];
+
+    /**
+     * How long UiThreadBridgeModes wait before flushing, so that bursts of
+     * messages are sent together. Either milliseconds or FLUSH_DELAY_NEXT_FRAME.
+     */
+    private volatile int flushDelay;
+
+    /**
+     * When > 0, messages longer than this are sent to JS in fragments of at most
+     * this many chars, one fragment per popAndEncode().
+     */
+    private volatile int maxChunkSize;
+
+    /**
+     * The list whose head is partway through being sent as fragments, and the
+     * number of chars of it that have been sent. Only accessed while holding
+     * the queue's monitor.
+     */
+    private MessageList chunkingList;
+    private int chunkingSentChars;
+
+    /**
+     * When true, ArrayBuffer results are sent as a URL that the WebView engine
+     * serves the raw bytes from, rather than as base64.
+     */
+    private volatile boolean binaryPayloadsEnabled;
+
+    /**
+     * Set once the current page has fetched BINARY_PAYLOAD_PROBE_URL. See setBinaryPayloadsConfirmed().
+     */
+    private volatile boolean binaryPayloadsConfirmed;
+
+    /**
+     * token -> bytes of an ArrayBuffer result, until fetched by JS.
+     */
+    private final ConcurrentHashMap<String, byte[]> binaryPayloads = new ConcurrentHashMap<String, byte[]>();
+    private final SecureRandom tokenGenerator = new SecureRandom();
+
+    /**
+     * When true, popAndEncode() may send batches in the binary wire format.
+     * See setBinaryWireFormatEnabled().
+     */
+    private volatile boolean binaryWireFormatEnabled;
+    private volatile int minBinaryBatchSize = DEFAULT_MIN_BINARY_BATCH_SIZE;
+
+    /**
+     * Capacity limits (0 means unlimited), and what to do when they are reached.
+     * See setCapacity().
+     */
+    private volatile int maxMessages;
+    private volatile long maxBytes;
+    private volatile int overflowPolicy = OVERFLOW_BLOCK_PRODUCER;
+
+    /**
+     * Approximate memory used by queued messages: two bytes per encoded char.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * Producers blocked by OVERFLOW_BLOCK_PRODUCER wait on this, and are notified
+     * after each drain.
+     */
+    private final Object capacityLock = new Object();
+
+    private final AtomicLong droppedMessageCount = new AtomicLong();
+    private final AtomicLong blockedMessageCount = new AtomicLong();
+
+    // Flush statistics. Only written while holding the queue's monitor.
+    private volatile int lastFlushMessageCount;
+    private volatile long flushCount;
+    private volatile long flushedMessageCount;
 
     /**
      * The array of listeners that can be used to send messages to JS.
@@ -64,7 +252,7 @@ public class NativeToJsMessageQueue {
      * When disabled, all callbacks are dropped since they are assumed to be
      * relevant to the previous page.
      */
-    private BridgeMode activeBridgeMode;
+    private volatile BridgeMode activeBridgeMode;
 
     public void addBridgeMode(BridgeMode bridgeMode) {
         bridgeModes.add(bridgeMode);
@@ -75,7 +263,243 @@ public class NativeToJsMessageQueue {
     }
 
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return size.get() <= 0;
+    }
+
+    /**
+     * Sets how long bridge modes that flush from the UI thread (LoadUrlBridgeMode,
+     * OnlineEventsBridgeMode) wait before flushing. 0 (the default) flushes as soon
+     * as the UI thread is free, FLUSH_DELAY_NEXT_FRAME flushes on the next display
+     * frame, and a positive value flushes after that many milliseconds. In all cases,
+     * messages that arrive while a flush is pending are sent with it.
+     */
+    public void setFlushDelay(int value) {
+        flushDelay = value;
+    }
+
+    public int getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Enables streaming of large messages. When > 0, popAndEncode() splits any
+     * message longer than this many chars into fragments, sending one fragment
+     * per call and the '*' more-pending marker after each. cordova.js reassembles
+     * the fragments before processing the message. This bounds the size of the
+     * strings that go over the bridge, regardless of how large a result is.
+     * Defaults to 0 (disabled). Not used by popAndEncodeAsJs().
+     */
+    public void setMaxChunkSize(int value) {
+        maxChunkSize = value;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Enables sending ArrayBuffer results without base64. Instead of the data,
+     * the message contains a one-time URL starting with BINARY_PAYLOAD_URL_PREFIX,
+     * which cordova.js fetches as an ArrayBuffer before invoking the callback.
+     * Only enable this from a CordovaWebViewEngine that serves these URLs using
+     * takeBinaryPayload(). Payloads that are not fetched are dropped by reset().
+     *
+     * The URLs are used for a page only once it has confirmed that it can fetch
+     * them (see setBinaryPayloadsConfirmed()). Pages with a Content-Security-Policy
+     * need to allow them with "connect-src https://cordova-bridge.invalid" (or the
+     * same in default-src). Other pages keep receiving base64.
+     */
+    public void setBinaryPayloadsEnabled(boolean value) {
+        binaryPayloadsEnabled = value;
+    }
+
+    public boolean getBinaryPayloadsEnabled() {
+        return binaryPayloadsEnabled;
+    }
+
+    /**
+     * Called by CordovaBridge once cordova.js has fetched BINARY_PAYLOAD_PROBE_URL,
+     * which shows that neither the page's Content-Security-Policy nor the WebView
+     * blocks binary payloads. Until then, and after reset(), they are not used.
+     * Cleared again if cordova.js later fails to fetch one.
+     */
+    public void setBinaryPayloadsConfirmed(boolean value) {
+        binaryPayloadsConfirmed = value;
+    }
+
+    public boolean getBinaryPayloadsConfirmed() {
+        return binaryPayloadsConfirmed;
+    }
+
+    private boolean useBinaryPayloads() {
+        return binaryPayloadsEnabled && binaryPayloadsConfirmed;
+    }
+
+    /**
+     * Removes and returns the bytes for the given binary payload URL, or null if
+     * the URL is unknown or has already been fetched. May be called from any thread.
+     */
+    public byte[] takeBinaryPayload(String url) {
+        if (!url.startsWith(BINARY_PAYLOAD_URL_PREFIX)) {
+            return null;
+        }
+        if (url.equals(BINARY_PAYLOAD_PROBE_URL)) {
+            return binaryPayloadsEnabled ? BINARY_PAYLOAD_PROBE.clone() : null;
+        }
+        return binaryPayloads.remove(url.substring(BINARY_PAYLOAD_URL_PREFIX.length()));
+    }
+
+    /**
+     * Enables the binary wire format, which cordova.js asks for when it sets up
+     * the bridge (see CordovaBridge). Batches of at least getMinBinaryBatchSize()
+     * chars are then encoded by BinaryMessageWriter and served as a binary payload,
+     * and popAndEncode() returns only a message that holds its URL. cordova.js
+     * fetches it as an ArrayBuffer and decodes it with a DataView, so that numbers,
+     * typed arrays and ArrayBuffers need no parsing or base64, and each callbackId
+     * is sent once per batch. Only takes effect while binary payloads are enabled
+     * (see setBinaryPayloadsEnabled()). Everything else, including fragments sent
+     * by setMaxChunkSize(), popAndEncodeAsJs(), and pages whose cordova.js does not
+     * ask for it, keeps using the text format. Cleared by reset().
+     *
+     * Like other binary payloads, batches are only sent once the page has fetched
+     * the probe (see setBinaryPayloadsConfirmed()), so a page whose
+     * Content-Security-Policy lacks "connect-src https://cordova-bridge.invalid"
+     * keeps receiving text. If a fetch fails later, cordova.js fails the batch's
+     * callbacks and withdraws its confirmation, so that text is sent from then on.
+     */
+    public void setBinaryWireFormatEnabled(boolean value) {
+        binaryWireFormatEnabled = value;
+    }
+
+    public boolean getBinaryWireFormatEnabled() {
+        return binaryWireFormatEnabled;
+    }
+
+    /**
+     * Sets the payload size, in chars of the text format, below which batches are
+     * sent as text even when the binary wire format is enabled. Defaults to 4096.
+     */
+    public void setMinBinaryBatchSize(int value) {
+        minBinaryBatchSize = value;
+    }
+
+    public int getMinBinaryBatchSize() {
+        return minBinaryBatchSize;
+    }
+
+    private String addBinaryPayload(byte[] data) {
+        String token = Long.toHexString(tokenGenerator.nextLong()) + Long.toHexString(tokenGenerator.nextLong());
+        binaryPayloads.put(token, data);
+        return token;
+    }
+
+    private void removeBinaryPayload(JsMessage message) {
+        if (message.binaryPayloadToken != null) {
+            binaryPayloads.remove(message.binaryPayloadToken);
+        }
+    }
+
+    /**
+     * Bounds the memory used by messages that are waiting to be sent to JS.
+     * Useful when a plugin can produce results faster than the page consumes
+     * them, or while the page is blocked. 0 means unlimited (the default).
+     * What happens to messages that arrive when the queue is full is set by
+     * setOverflowPolicy().
+     *
+     * @param maxMessages   Maximum number of queued messages.
+     * @param maxBytes      Maximum size of queued messages, counting two bytes per encoded char.
+     */
+    public void setCapacity(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        notifyCapacityAvailable();
+    }
+
+    /**
+     * Sets what happens to a message that arrives when the queue is full:
+     *
+     * OVERFLOW_BLOCK_PRODUCER (default): the sending thread waits for the queue to
+     * drain. Threads that drain the queue themselves (those with a Looper, such as
+     * the UI thread and the WebView's JS bridge thread) never wait, and no thread
+     * waits for longer than a few seconds.
+     *
+     * OVERFLOW_DROP_OLDEST_KEEP_CALLBACK: the oldest queued results that have
+     * keepCallback set are discarded to make room, bulk lane first. Results that
+     * finish a callback are never discarded.
+     *
+     * OVERFLOW_FAIL_FAST: the message is discarded. If it is a plugin result, an
+     * ERROR result is sent to its callback instead.
+     */
+    public void setOverflowPolicy(int value) {
+        overflowPolicy = value;
+        notifyCapacityAvailable();
+    }
+
+    /**
+     * Returns how full the queue is relative to its capacity, where 1 means full.
+     * Can exceed 1 when the overflow policy lets messages through regardless.
+     * Always 0 when no capacity is set. Plugins that produce a lot of results can
+     * use this to throttle themselves. May be called from any thread.
+     */
+    public float getPressure() {
+        float pressure = 0;
+        int maxMessages = this.maxMessages;
+        long maxBytes = this.maxBytes;
+        if (maxMessages > 0) {
+            pressure = (float) size.get() / maxMessages;
+        }
+        if (maxBytes > 0) {
+            pressure = Math.max(pressure, (float) queuedBytes.get() / maxBytes);
+        }
+        return pressure;
+    }
+
+    /**
+     * Returns the number of messages discarded by OVERFLOW_DROP_OLDEST_KEEP_CALLBACK
+     * or OVERFLOW_FAIL_FAST.
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessageCount.get();
+    }
+
+    /**
+     * Returns the number of messages whose sender was made to wait by OVERFLOW_BLOCK_PRODUCER.
+     */
+    public long getBlockedMessageCount() {
+        return blockedMessageCount.get();
+    }
+
+    /**
+     * Returns the number of messages sent by the most recent flush.
+     */
+    public int getLastFlushMessageCount() {
+        return lastFlushMessageCount;
+    }
+
+    /**
+     * Returns the number of flushes that have sent at least one message.
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Returns the total number of messages sent by all flushes.
+     */
+    public long getFlushedMessageCount() {
+        return flushedMessageCount;
+    }
+
+    /**
+     * Must be called while holding the queue's monitor.
+     */
+    private void recordFlush(int numMessages, int payloadLength) {
+        lastFlushMessageCount = numMessages;
+        flushCount++;
+        flushedMessageCount += numMessages;
+        if (LOG.isLoggable(LOG.VERBOSE)) {
+            LOG.v(LOG_TAG, "Flushed " + numMessages + " messages (" + payloadLength + " chars)");
+        }
     }
 
     /**
@@ -92,7 +516,7 @@ public class NativeToJsMessageQueue {
                     activeBridgeMode = newMode;
                     if (newMode != null) {
                         newMode.reset();
-                        if (!paused && !queue.isEmpty()) {
+                        if (!paused && !isEmpty()) {
                             newMode.onNativeToJsMessageAvailable(this);
                         }
                     }
@@ -106,24 +530,282 @@ public class NativeToJsMessageQueue {
      */
     public void reset() {
         synchronized (this) {
-            queue.clear();
+            generation++;
+            binaryWireFormatEnabled = false;
+            binaryPayloadsConfirmed = false;
+            coalescingMessages.clear();
+            binaryPayloads.clear();
+            // Anything enqueued concurrently with this is stamped with the old
+            // generation, and is dropped by the next call to claimIncoming().
+            claimIncoming();
+            while (!interactiveMessages.isEmpty()) {
+                removePending(interactiveMessages, null);
+            }
+            while (!bulkMessages.isEmpty()) {
+                removePending(bulkMessages, null);
+            }
             setBridgeMode(-1);
         }
+        notifyCapacityAvailable();
     }
 
-    private int calculatePackedMessageLength(JsMessage message) {
-        int messageLen = message.calculateEncodedLength();
-        String messageLenStr = String.valueOf(messageLen);
-        return messageLenStr.length() + messageLen + 1;        
+    /**
+     * Moves all incoming messages onto the end of their lane's pending list.
+     * Must be called while holding the queue's monitor.
+     */
+    private void claimIncoming() {
+        JsMessage message = incoming.getAndSet(null);
+        if (message == null) {
+            return;
+        }
+        // Reverse the stack so that messages are in the order they were enqueued.
+        JsMessage reversed = null;
+        while (message != null) {
+            JsMessage next = message.next;
+            message.next = reversed;
+            reversed = message;
+            message = next;
+        }
+        int currentGeneration = generation;
+        while (reversed != null) {
+            JsMessage next = reversed.next;
+            reversed.next = null;
+            if (reversed.generation != currentGeneration) {
+                stopCoalescing(reversed);
+                removeBinaryPayload(reversed);
+                queuedBytes.addAndGet(-reversed.getQueuedBytes());
+                size.decrementAndGet();
+            } else if (isBulk(reversed)) {
+                String callbackId = reversed.jsPayloadOrCallbackId;
+                Integer count = bulkCallbackIds.get(callbackId);
+                bulkCallbackIds.put(callbackId, count == null ? 1 : count + 1);
+                bulkMessages.add(reversed);
+            } else {
+                interactiveMessages.add(reversed);
+            }
+            reversed = next;
+        }
     }
-    
-    private void packMessage(JsMessage message, StringBuilder sb) {
-        int len = message.calculateEncodedLength();
-        sb.append(len)
-          .append(' ');
-        message.encodeAsMessage(sb);
+
+    /**
+     * Adopts the latest contents of a coalescing message, after which it can no
+     * longer be replaced. Called once the message is being sent or discarded.
+     * Must be called while holding the queue's monitor.
+     */
+    private void stopCoalescing(JsMessage message) {
+        if (message.coalesced != null) {
+            coalescingMessages.remove(message.jsPayloadOrCallbackId, message);
+            message.takeCoalesced();
+        }
     }
-    
+
+    /**
+     * Must be called while holding the queue's monitor.
+     */
+    private boolean isBulk(JsMessage message) {
+        if (message.pluginResult == null) {
+            return false;
+        }
+        return message.pluginResult.getLane() == PluginResult.LANE_BULK
+                || bulkCallbackIds.containsKey(message.jsPayloadOrCallbackId);
+    }
+
+    /**
+     * Returns the list that the next message should be sent from, or null if
+     * there are no pending messages. Must be called while holding the queue's monitor.
+     */
+    private MessageList nextPendingList() {
+        if (chunkingList != null) {
+            return chunkingList;
+        }
+        if (!interactiveMessages.isEmpty()) {
+            return interactiveMessages;
+        }
+        return bulkMessages.isEmpty() ? null : bulkMessages;
+    }
+
+    /**
+     * Removes and returns the oldest pending message of the given list, which is being sent.
+     * Must be called while holding the queue's monitor.
+     */
+    private JsMessage popPending(MessageList list) {
+        JsMessage message = removePending(list, null);
+        if (message.deliveryLatency != null) {
+            message.deliveryLatency.recordSince(message.enqueueNanos);
+        }
+        return message;
+    }
+
+    /**
+     * Removes and returns the pending message after prev, or the list's head if
+     * prev is null. Must be called while holding the queue's monitor.
+     */
+    private JsMessage removePending(MessageList list, JsMessage prev) {
+        JsMessage message = list.remove(prev);
+        stopCoalescing(message);
+        if (list == bulkMessages) {
+            String callbackId = message.jsPayloadOrCallbackId;
+            int count = bulkCallbackIds.get(callbackId);
+            if (count == 1) {
+                bulkCallbackIds.remove(callbackId);
+            } else {
+                bulkCallbackIds.put(callbackId, count - 1);
+            }
+        }
+        if (prev == null && list == chunkingList) {
+            chunkingList = null;
+            chunkingSentChars = 0;
+        }
+        queuedBytes.addAndGet(-message.getQueuedBytes());
+        size.decrementAndGet();
+        return message;
+    }
+
+    /**
+     * Discards the oldest pending result that has keepCallback set, preferring
+     * the bulk lane. Returns false if there are none.
+     * Must be called while holding the queue's monitor.
+     */
+    private boolean dropOldestKeepCallback() {
+        return dropOldestKeepCallback(bulkMessages) || dropOldestKeepCallback(interactiveMessages);
+    }
+
+    private boolean dropOldestKeepCallback(MessageList list) {
+        JsMessage prev = null;
+        for (JsMessage message = list.head; message != null; prev = message, message = message.next) {
+            // A message that is partway through being sent in fragments must be finished.
+            if (prev == null && list == chunkingList) {
+                continue;
+            }
+            PluginResult pluginResult = message.latest().pluginResult;
+            if (pluginResult != null && pluginResult.getKeepCallback()) {
+                removeBinaryPayload(removePending(list, prev));
+                droppedMessageCount.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isOverCapacity(long extraBytes) {
+        int maxMessages = this.maxMessages;
+        long maxBytes = this.maxBytes;
+        int size = this.size.get();
+        // A message larger than maxBytes is let through once the queue is empty.
+        return (maxMessages > 0 && size >= maxMessages)
+                || (maxBytes > 0 && size > 0 && queuedBytes.get() + extraBytes > maxBytes);
+    }
+
+    /**
+     * Applies the overflow policy when the queue is full. Returns whether the
+     * message should be queued.
+     */
+    private boolean makeRoomFor(JsMessage message, BridgeMode bridgeMode) {
+        long messageBytes = message.getQueuedBytes();
+        if (!isOverCapacity(messageBytes)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case OVERFLOW_DROP_OLDEST_KEEP_CALLBACK:
+                synchronized (this) {
+                    claimIncoming();
+                    while (isOverCapacity(messageBytes) && dropOldestKeepCallback()) {
+                    }
+                }
+                return true;
+            case OVERFLOW_FAIL_FAST:
+                droppedMessageCount.incrementAndGet();
+                removeBinaryPayload(message);
+                if (message.pluginResult == null) {
+                    Log.w(LOG_TAG, "Dropping Native->JS message due to full queue");
+                } else {
+                    // Sent regardless of capacity, so that the callback always finds out.
+                    String callbackId = message.jsPayloadOrCallbackId;
+                    JsMessage error = new JsMessage(new PluginResult(PluginResult.Status.ERROR, "Native->JS message queue is full"), callbackId);
+                    error.generation = message.generation;
+                    error.pack();
+                    coalescingMessages.remove(callbackId);
+                    pushIncoming(error, bridgeMode);
+                }
+                return false;
+            default:
+                waitForCapacity(messageBytes);
+                return true;
+        }
+    }
+
+    private void waitForCapacity(long messageBytes) {
+        // Threads with a Looper process the events that drain the queue, and the
+        // JS thread drains it at the end of each exec(), so they must not wait.
+        if (Looper.myLooper() != null || Thread.currentThread() == CordovaResourceApi.jsThread) {
+            return;
+        }
+        blockedMessageCount.incrementAndGet();
+        long deadline = System.nanoTime() + MAX_PRODUCER_BLOCK_MILLIS * 1000000;
+        synchronized (capacityLock) {
+            while (activeBridgeMode != null && overflowPolicy == OVERFLOW_BLOCK_PRODUCER && isOverCapacity(messageBytes)) {
+                long remainingMillis = (deadline - System.nanoTime()) / 1000000;
+                if (remainingMillis <= 0) {
+                    Log.w(LOG_TAG, "Timed out waiting for space in the Native->JS message queue");
+                    return;
+                }
+                try {
+                    capacityLock.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void notifyCapacityAvailable() {
+        if (maxMessages > 0 || maxBytes > 0 || blockedMessageCount.get() > 0) {
+            synchronized (capacityLock) {
+                capacityLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns how many messages from the front of the list fit into one payload.
+     * Each lane has its own MAX_PAYLOAD_SIZE budget. When chunkSize > 0, stops
+     * before any message that would need to be sent in fragments.
+     * Must be called while holding the queue's monitor.
+     */
+    private int countMessagesToSend(MessageList list, boolean asJs, int chunkSize) {
+        int totalPayloadLen = 0;
+        int numMessagesToSend = 0;
+        for (JsMessage message = list.head; message != null; message = message.next) {
+            JsMessage latest = message.latest();
+            int messageSize = asJs ? latest.encodedLength + 50 : latest.packed.length(); // overestimate.
+            if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
+                break;
+            }
+            if (chunkSize > 0 && latest.encodedLength > chunkSize) {
+                break;
+            }
+            totalPayloadLen += messageSize;
+            numMessagesToSend += 1;
+        }
+        return numMessagesToSend;
+    }
+
+    /**
+     * Returns the combined length of the first count packed messages of the list.
+     * Coalescing messages can still be replaced until they are popped, so this
+     * is only an estimate for them.
+     */
+    private static int packedLength(MessageList list, int count) {
+        int ret = 0;
+        JsMessage message = list.head;
+        for (int i = 0; i < count; ++i) {
+            ret += message.latest().packed.length();
+            message = message.next;
+        }
+        return ret;
+    }
+
     /**
      * Combines and returns queued messages combined into a single string.
      * Combines as many messages as possible, while staying under MAX_PAYLOAD_SIZE.
@@ -135,60 +817,197 @@ public class NativeToJsMessageQueue {
                 return null;
             }
             activeBridgeMode.notifyOfFlush(this, fromOnlineEvent);
-            if (queue.isEmpty()) {
+            claimIncoming();
+            MessageList list = nextPendingList();
+            if (list == null) {
                 return null;
             }
-            int totalPayloadLen = 0;
-            int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = calculatePackedMessageLength(message);
-                if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
-                    break;
-                }
-                totalPayloadLen += messageSize;
-                numMessagesToSend += 1;
+            int chunkSize = maxChunkSize;
+            if (chunkSize > 0 && list.head.latest().encodedLength > chunkSize) {
+                return popAndEncodeChunk(list, chunkSize);
+            }
+            // Messages that need to be sent in fragments are left for the next call.
+            // Bulk messages are only sent once all interactive ones have been.
+            int numInteractive = countMessagesToSend(interactiveMessages, false, chunkSize);
+            int numBulk = 0;
+            if (numInteractive == interactiveMessages.size) {
+                numBulk = countMessagesToSend(bulkMessages, false, chunkSize);
+            }
+            int totalPayloadLen = packedLength(interactiveMessages, numInteractive) + packedLength(bulkMessages, numBulk);
+            if (binaryWireFormatEnabled && useBinaryPayloads() && totalPayloadLen >= minBinaryBatchSize) {
+                return popAndEncodeBinary(numInteractive, numBulk, totalPayloadLen);
             }
 
-            StringBuilder sb = new StringBuilder(totalPayloadLen);
+            // Messages are already encoded, so this is just a copy into the
+            // reusable buffer followed by a copy into the returned String.
+            char[] buf = ensurePayloadBuffer(totalPayloadLen + 1);
+            int payloadLen = 0;
+            int numMessagesToSend = numInteractive + numBulk;
             for (int i = 0; i < numMessagesToSend; ++i) {
-                JsMessage message = queue.removeFirst();
-                packMessage(message, sb);
+                StringBuilder packed = popPending(i < numInteractive ? interactiveMessages : bulkMessages).packed;
+                int len = packed.length();
+                if (payloadLen + len + 1 > buf.length) {
+                    // A coalescing message was replaced by a larger one since it was counted.
+                    buf = payloadBuffer = Arrays.copyOf(buf, Math.max(payloadLen + len + 1, buf.length * 2));
+                }
+                packed.getChars(0, len, buf, payloadLen);
+                payloadLen += len;
             }
             
-            if (!queue.isEmpty()) {
+            if (!interactiveMessages.isEmpty() || !bulkMessages.isEmpty()) {
                 // Attach a char to indicate that there are more messages pending.
-                sb.append('*');
+                buf[payloadLen++] = '*';
             }
-            String ret = sb.toString();
+            String ret = new String(buf, 0, payloadLen);
+            releasePayloadBuffer();
+            recordFlush(numMessagesToSend, payloadLen);
+            notifyCapacityAvailable();
             return ret;
         }
     }
+
+    /**
+     * Encodes the given number of messages from each lane as a binary batch, and
+     * returns the text message that points cordova.js at it:
+     * "<len> W<binary payload URL>", then " <keepCallback><callbackId>" for each
+     * callback in the batch, plus the '*' more-pending marker. keepCallback is
+     * that of the callback's last result in the batch. If cordova.js can't fetch
+     * the batch, it sends an error to each of these callbacks.
+     * Must be called while holding the queue's monitor.
+     */
+    private String popAndEncodeBinary(int numInteractive, int numBulk, int totalPayloadLen) {
+        // Text chars are mostly written as two bytes, so this rarely needs to grow.
+        BinaryMessageWriter writer = new BinaryMessageWriter(2 * totalPayloadLen + 64);
+        int numMessagesToSend = numInteractive + numBulk;
+        LinkedHashMap<String, Boolean> callbacks = new LinkedHashMap<String, Boolean>();
+        for (int i = 0; i < numMessagesToSend; ++i) {
+            JsMessage message = popPending(i < numInteractive ? interactiveMessages : bulkMessages);
+            // The bytes of ArrayBuffer results are written into the batch instead.
+            removeBinaryPayload(message);
+            message.encodeAsBinary(writer);
+            if (message.pluginResult != null) {
+                callbacks.put(message.jsPayloadOrCallbackId, message.pluginResult.getKeepCallback());
+            }
+        }
+        StringBuilder body = new StringBuilder(128);
+        body.append(BINARY_BATCH_MARKER)
+            .append(BINARY_PAYLOAD_URL_PREFIX)
+            .append(addBinaryPayload(writer.finish()));
+        for (Map.Entry<String, Boolean> callback : callbacks.entrySet()) {
+            body.append(' ')
+                .append(callback.getValue() ? '1' : '0')
+                .append(callback.getKey());
+        }
+        StringBuilder sb = new StringBuilder(body.length() + 8);
+        sb.append(body.length())
+          .append(' ')
+          .append(body);
+        if (!interactiveMessages.isEmpty() || !bulkMessages.isEmpty()) {
+            sb.append('*');
+        }
+        String ret = sb.toString();
+        recordFlush(numMessagesToSend, ret.length());
+        notifyCapacityAvailable();
+        return ret;
+    }
+
+    /**
+     * Encodes the next fragment of the head of list, which is too large to send at once.
+     * Fragments are framed like regular messages, but all except the last start
+     * with CHUNK_MARKER. No other messages are sent until the last fragment has been.
+     * Must be called while holding the queue's monitor.
+     */
+    private String popAndEncodeChunk(MessageList list, int chunkSize) {
+        JsMessage message = list.head;
+        if (chunkingSentChars == 0) {
+            // The fragments must all come from the same result.
+            stopCoalescing(message);
+        }
+        // Skip over the "<len> " prefix of the packed message.
+        int start = message.packed.length() - message.encodedLength + chunkingSentChars;
+        int remaining = message.encodedLength - chunkingSentChars;
+        boolean isLastChunk = remaining <= chunkSize;
+        int fragmentLen = isLastChunk ? remaining : chunkSize;
+        // Lone surrogates are replaced when crossing the bridge, so never split a pair.
+        if (!isLastChunk && fragmentLen > 1 && Character.isHighSurrogate(message.packed.charAt(start + fragmentLen - 1))) {
+            fragmentLen--;
+        }
+        int frameLen = isLastChunk ? fragmentLen : fragmentLen + 1;
+        String frameLenStr = String.valueOf(frameLen);
+
+        char[] buf = ensurePayloadBuffer(frameLenStr.length() + 1 + frameLen + 1);
+        int payloadLen = frameLenStr.length();
+        frameLenStr.getChars(0, payloadLen, buf, 0);
+        buf[payloadLen++] = ' ';
+        if (!isLastChunk) {
+            buf[payloadLen++] = CHUNK_MARKER;
+        }
+        message.packed.getChars(start, start + fragmentLen, buf, payloadLen);
+        payloadLen += fragmentLen;
+
+        if (isLastChunk) {
+            popPending(list);
+        } else {
+            chunkingList = list;
+            chunkingSentChars += fragmentLen;
+        }
+        if (!interactiveMessages.isEmpty() || !bulkMessages.isEmpty()) {
+            buf[payloadLen++] = '*';
+        }
+        String ret = new String(buf, 0, payloadLen);
+        releasePayloadBuffer();
+        recordFlush(isLastChunk ? 1 : 0, payloadLen);
+        if (isLastChunk) {
+            notifyCapacityAvailable();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns payloadBuffer, first growing it to at least minLength.
+     * Must be called while holding the queue's monitor.
+     */
+    private char[] ensurePayloadBuffer(int minLength) {
+        if (payloadBuffer.length < minLength) {
+            payloadBuffer = new char[Math.max(minLength, payloadBuffer.length * 2)];
+        }
+        return payloadBuffer;
+    }
+
+    /**
+     * Called at the end of a flush so that an unusually large buffer isn't retained.
+     */
+    private void releasePayloadBuffer() {
+        if (payloadBuffer.length > MAX_RETAINED_PAYLOAD_BUFFER_SIZE) {
+            payloadBuffer = new char[INITIAL_PAYLOAD_BUFFER_SIZE];
+        }
+    }
     
     /**
      * Same as popAndEncode(), except encodes in a form that can be executed as JS.
      */
     public String popAndEncodeAsJs() {
         synchronized (this) {
-            int length = queue.size();
-            if (length == 0) {
+            claimIncoming();
+            if (nextPendingList() == null) {
                 return null;
             }
-            int totalPayloadLen = 0;
-            int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = message.calculateEncodedLength() + 50; // overestimate.
-                if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
-                    break;
-                }
-                totalPayloadLen += messageSize;
-                numMessagesToSend += 1;
+            int numInteractive = countMessagesToSend(interactiveMessages, true, 0);
+            int numBulk = 0;
+            if (numInteractive == interactiveMessages.size) {
+                numBulk = countMessagesToSend(bulkMessages, true, 0);
             }
-            boolean willSendAllMessages = numMessagesToSend == queue.size();
+            int numMessagesToSend = numInteractive + numBulk;
+            boolean willSendAllMessages = numInteractive == interactiveMessages.size && numBulk == bulkMessages.size;
+            int totalPayloadLen = packedLength(interactiveMessages, numInteractive) + packedLength(bulkMessages, numBulk)
+                    + numMessagesToSend * 50;
             StringBuilder sb = new StringBuilder(totalPayloadLen + (willSendAllMessages ? 0 : 100));
             // Wrap each statement in a try/finally so that if one throws it does 
             // not affect the next.
             for (int i = 0; i < numMessagesToSend; ++i) {
-                JsMessage message = queue.removeFirst();
+                JsMessage message = popPending(i < numInteractive ? interactiveMessages : bulkMessages);
+                // This form inlines the data as base64.
+                removeBinaryPayload(message);
                 if (willSendAllMessages && (i + 1 == numMessagesToSend)) {
                     message.encodeAsJsMessage(sb);
                 } else {
@@ -204,6 +1023,8 @@ public class NativeToJsMessageQueue {
                 sb.append('}');
             }
             String ret = sb.toString();
+            recordFlush(numMessagesToSend, ret.length());
+            notifyCapacityAvailable();
             return ret;
         }
     }   
@@ -231,6 +1052,7 @@ public class NativeToJsMessageQueue {
             return;
         }
         JsMessage message = new JsMessage(result, callbackId);
+        message.deliveryLatency = sendingDeliveryLatency.get();
         if (FORCE_ENCODE_USING_EVAL) {
             StringBuilder sb = new StringBuilder(message.calculateEncodedLength() + 50);
             message.encodeAsJsMessage(sb);
@@ -241,16 +1063,62 @@ public class NativeToJsMessageQueue {
     }
 
     private void enqueueMessage(JsMessage message) {
-        synchronized (this) {
-            if (activeBridgeMode == null) {
-                Log.d(LOG_TAG, "Dropping Native->JS message due to disabled bridge");
-                return;
-            }
-            queue.add(message);
-            if (!paused) {
-                activeBridgeMode.onNativeToJsMessageAvailable(this);
+        // Read the generation before the bridge mode so that a concurrent reset()
+        // either disables the bridge first or causes this message to be dropped.
+        message.generation = generation;
+        message.enqueueNanos = System.nanoTime();
+        BridgeMode bridgeMode = activeBridgeMode;
+        if (bridgeMode == null) {
+            Log.d(LOG_TAG, "Dropping Native->JS message due to disabled bridge");
+            return;
+        }
+        if (useBinaryPayloads() && message.pluginResult != null
+                && message.pluginResult.getMessageType() == PluginResult.MESSAGE_TYPE_ARRAYBUFFER) {
+            message.binaryPayloadToken = addBinaryPayload(message.pluginResult.getBinaryMessage());
+        }
+        // Encode on the calling thread so that the drain only has to copy.
+        message.pack();
+        String callbackId = null;
+        boolean coalesce = false;
+        if (message.pluginResult != null) {
+            callbackId = message.jsPayloadOrCallbackId;
+            coalesce = message.pluginResult.getCoalesce() && message.pluginResult.getKeepCallback();
+            if (coalesce) {
+                JsMessage queued = coalescingMessages.get(callbackId);
+                JsMessage replaced = queued == null ? null : queued.replaceCoalesced(message);
+                if (replaced != null) {
+                    queuedBytes.addAndGet(message.getQueuedBytes() - replaced.getQueuedBytes());
+                    removeBinaryPayload(replaced);
+                    // The queued message has already triggered a notification.
+                    return;
+                }
             }
         }
+        if (!makeRoomFor(message, bridgeMode)) {
+            return;
+        }
+        if (coalesce) {
+            message.coalesced = new AtomicReference<JsMessage>(message);
+            coalescingMessages.put(callbackId, message);
+        } else if (callbackId != null) {
+            // Don't let later results for this callback jump ahead of this one.
+            coalescingMessages.remove(callbackId);
+        }
+        pushIncoming(message, bridgeMode);
+    }
+
+    private void pushIncoming(JsMessage message, BridgeMode bridgeMode) {
+        // Count the message before publishing it so that isEmpty() never misses it.
+        size.incrementAndGet();
+        queuedBytes.addAndGet(message.getQueuedBytes());
+        JsMessage top;
+        do {
+            top = incoming.get();
+            message.next = top;
+        } while (!incoming.compareAndSet(top, message));
+        if (!paused) {
+            bridgeMode.onNativeToJsMessageAvailable(this);
+        }
     }
 
     public void setPaused(boolean value) {
@@ -262,7 +1130,7 @@ public class NativeToJsMessageQueue {
         paused = value;
         if (!value) {
             synchronized (this) {
-                if (!queue.isEmpty() && activeBridgeMode != null) {
+                if (!isEmpty() && activeBridgeMode != null) {
                     activeBridgeMode.onNativeToJsMessageAvailable(this);
                 }
             }   
@@ -281,8 +1149,79 @@ public class NativeToJsMessageQueue {
         }
     }
 
+    /**
+     * Base class for bridge modes that flush from the UI thread. At most one flush
+     * is pending at a time, so a burst of messages results in a single UI thread
+     * task rather than one per message. When the flush happens is controlled by
+     * NativeToJsMessageQueue.setFlushDelay().
+     */
+    public static abstract class UiThreadBridgeMode extends BridgeMode {
+        private final AtomicBoolean flushPending = new AtomicBoolean();
+        private Handler handler;
+
+        /**
+         * Runs the given Runnable on the UI thread.
+         */
+        protected abstract void runOnUiThread(Runnable r);
+
+        /**
+         * Called on the UI thread to send pending messages to JS.
+         */
+        protected abstract void flush(NativeToJsMessageQueue queue);
+
+        @Override
+        public void onNativeToJsMessageAvailable(final NativeToJsMessageQueue queue) {
+            if (!flushPending.compareAndSet(false, true)) {
+                return;
+            }
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    scheduleFlush(queue);
+                }
+            });
+        }
+
+        private void scheduleFlush(final NativeToJsMessageQueue queue) {
+            int delay = queue.getFlushDelay();
+            if (delay == FLUSH_DELAY_NEXT_FRAME && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                postFrameCallback(queue);
+                return;
+            }
+            if (delay == FLUSH_DELAY_NEXT_FRAME) {
+                delay = 16;
+            }
+            if (delay <= 0) {
+                runFlush(queue);
+                return;
+            }
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+            }
+            handler.postDelayed(new Runnable() {
+                public void run() {
+                    runFlush(queue);
+                }
+            }, delay);
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        private void postFrameCallback(final NativeToJsMessageQueue queue) {
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                public void doFrame(long frameTimeNanos) {
+                    runFlush(queue);
+                }
+            });
+        }
+
+        private void runFlush(NativeToJsMessageQueue queue) {
+            // Clear first so that messages enqueued during the flush schedule another.
+            flushPending.set(false);
+            flush(queue);
+        }
+    }
+
     /** Uses webView.loadUrl("javascript:") to execute messages. */
-    public static class LoadUrlBridgeMode extends BridgeMode {
+    public static class LoadUrlBridgeMode extends UiThreadBridgeMode {
         private final CordovaWebViewEngine engine;
         private final CordovaInterface cordova;
 
@@ -292,20 +1231,21 @@ public class NativeToJsMessageQueue {
         }
 
         @Override
-        public void onNativeToJsMessageAvailable(final NativeToJsMessageQueue queue) {
-            cordova.getActivity().runOnUiThread(new Runnable() {
-                public void run() {
-                    String js = queue.popAndEncodeAsJs();
-                    if (js != null) {
-                        engine.loadUrl("javascript:" + js, false);
-                    }
-                }
-            });
+        protected void runOnUiThread(Runnable r) {
+            cordova.getActivity().runOnUiThread(r);
+        }
+
+        @Override
+        protected void flush(NativeToJsMessageQueue queue) {
+            String js = queue.popAndEncodeAsJs();
+            if (js != null) {
+                engine.loadUrl("javascript:" + js, false);
+            }
         }
     }
 
     /** Uses online/offline events to tell the JS when to poll for messages. */
-    public static class OnlineEventsBridgeMode extends BridgeMode {
+    public static class OnlineEventsBridgeMode extends UiThreadBridgeMode {
         private final OnlineEventsBridgeModeDelegate delegate;
         private boolean online;
         private boolean ignoreNextFlush;
@@ -332,15 +1272,16 @@ public class NativeToJsMessageQueue {
         }
 
         @Override
-        public void onNativeToJsMessageAvailable(final NativeToJsMessageQueue queue) {
-            delegate.runOnUiThread(new Runnable() {
-                public void run() {
-                    if (!queue.isEmpty()) {
-                        ignoreNextFlush = false;
-                        delegate.setNetworkAvailable(online);
-                    }
-                }
-            });
+        protected void runOnUiThread(Runnable r) {
+            delegate.runOnUiThread(r);
+        }
+
+        @Override
+        protected void flush(NativeToJsMessageQueue queue) {
+            if (!queue.isEmpty()) {
+                ignoreNextFlush = false;
+                delegate.setNetworkAvailable(online);
+            }
         }
         // Track when online/offline events are fired so that we don't fire excess events.
         @Override
@@ -351,9 +1292,70 @@ public class NativeToJsMessageQueue {
         }
     }
 
+    /**
+     * A FIFO of JsMessages linked through JsMessage.next.
+     */
+    private static class MessageList {
+        JsMessage head;
+        JsMessage tail;
+        int size;
+
+        boolean isEmpty() {
+            return head == null;
+        }
+
+        void add(JsMessage message) {
+            if (tail == null) {
+                head = tail = message;
+            } else {
+                tail.next = message;
+                tail = message;
+            }
+            size++;
+        }
+
+        /**
+         * Removes and returns the message after prev, or the head if prev is null.
+         */
+        JsMessage remove(JsMessage prev) {
+            JsMessage message = prev == null ? head : prev.next;
+            if (prev == null) {
+                head = message.next;
+            } else {
+                prev.next = message.next;
+            }
+            if (tail == message) {
+                tail = prev;
+            }
+            message.next = null;
+            size--;
+            return message;
+        }
+    }
+
     private static class JsMessage {
         final String jsPayloadOrCallbackId;
-        final PluginResult pluginResult;
+        PluginResult pluginResult;
+        // Value of NativeToJsMessageQueue.generation when this was enqueued.
+        int generation;
+        // Value of System.nanoTime() when this was enqueued.
+        long enqueueNanos;
+        // Where to record how long this waited to be sent. See sendingDeliveryLatency.
+        LatencyHistogram deliveryLatency;
+        // Next message in the incoming stack or pending list.
+        JsMessage next;
+        // Set when the ArrayBuffer data of pluginResult is sent via takeBinaryPayload().
+        String binaryPayloadToken;
+        // Set by pack(): the result of calculateEncodedLength(), and the message
+        // encoded as "<encodedLength> <encodeAsMessage()>".
+        int encodedLength;
+        StringBuilder packed;
+        // Set by pack(): where the value of pluginResult starts in packed. The other encodings
+        // read JSON values from there, so that they send the JSON as it was when queued.
+        int valueStart;
+        // Non-null for coalescing results. Holds the latest result for the callback,
+        // which may be a different JsMessage, until the message is sent or discarded.
+        AtomicReference<JsMessage> coalesced;
         JsMessage(String js) {
             if (js == null) {
                 throw new NullPointerException();
@@ -375,13 +1377,16 @@ public class NativeToJsMessageQueue {
                 case PluginResult.MESSAGE_TYPE_NULL: // N
                     return 1;
                 case PluginResult.MESSAGE_TYPE_NUMBER: // n
-                    return 1 + pluginResult.getMessage().length();
+                    return 1 + pluginResult.getEncodedNumberLength();
                 case PluginResult.MESSAGE_TYPE_STRING: // s
                     return 1 + pluginResult.getStrMessage().length();
                 case PluginResult.MESSAGE_TYPE_BINARYSTRING:
                     return 1 + pluginResult.getMessage().length();
                 case PluginResult.MESSAGE_TYPE_ARRAYBUFFER:
                     return 1 + pluginResult.getMessage().length();
+                case PluginResult.MESSAGE_TYPE_DOUBLE_ARRAY: // D
+                case PluginResult.MESSAGE_TYPE_INT_ARRAY: // I
+                    return 1 + pluginResult.getEncodedArrayLength();
                 case PluginResult.MESSAGE_TYPE_MULTIPART:
                     int ret = 1;
                     for (int i = 0; i < pluginResult.getMultipartMessagesSize(); i++) {
@@ -392,18 +1397,92 @@ public class NativeToJsMessageQueue {
                     return ret;
                 case PluginResult.MESSAGE_TYPE_JSON:
                 default:
-                    return pluginResult.getMessage().length();
+                    Object json = pluginResult.getJsonMessage();
+                    return json != null ? JsonWriter.length(json) : pluginResult.getMessage().length();
             }
         }
         
+        /**
+         * Replaces the contents of this message with newer, unless a drain has already claimed it.
+         * Returns the message whose contents were replaced, or null if it was claimed.
+         */
+        JsMessage replaceCoalesced(JsMessage newer) {
+            while (true) {
+                JsMessage current = coalesced.get();
+                if (current == null) {
+                    return null;
+                }
+                if (coalesced.compareAndSet(current, newer)) {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Returns the message whose contents would be sent if this one were sent now.
+         */
+        JsMessage latest() {
+            AtomicReference<JsMessage> ref = coalesced;
+            JsMessage latest = ref == null ? null : ref.get();
+            return latest == null ? this : latest;
+        }
+
+        /**
+         * Adopts the contents of the latest coalesced result, after which it can no longer be replaced.
+         */
+        void takeCoalesced() {
+            JsMessage latest = coalesced.getAndSet(null);
+            if (latest == null) {
+                return;
+            }
+            pluginResult = latest.pluginResult;
+            binaryPayloadToken = latest.binaryPayloadToken;
+            encodedLength = latest.encodedLength;
+            packed = latest.packed;
+            valueStart = latest.valueStart;
+        }
+
+        long getQueuedBytes() {
+            return 2L * packed.length();
+        }
+
+        void pack() {
+            if (pluginResult != null && pluginResult.getMessageType() == PluginResult.MESSAGE_TYPE_MULTIPART) {
+                serializeJsonParts(pluginResult);
+            }
+            encodedLength = calculateEncodedLength();
+            String lengthStr = String.valueOf(encodedLength);
+            packed = new StringBuilder(lengthStr.length() + 1 + encodedLength);
+            packed.append(lengthStr)
+                  .append(' ');
+            encodeAsMessage(packed);
+        }
+
+        /**
+         * Serializes the JSON parts of a multipart result, whose text isn't kept apart in packed.
+         */
+        private static void serializeJsonParts(PluginResult pluginResult) {
+            for (int i = 0; i < pluginResult.getMultipartMessagesSize(); i++) {
+                PluginResult part = pluginResult.getMultipartMessage(i);
+                if (part.getMessageType() == PluginResult.MESSAGE_TYPE_MULTIPART) {
+                    serializeJsonParts(part);
+                } else if (part.getMessageType() == PluginResult.MESSAGE_TYPE_JSON) {
+                    part.getMessage();
+                }
+            }
+        }
+
         int calculateEncodedLength() {
             if (pluginResult == null) {
                 return jsPayloadOrCallbackId.length() + 1;
             }
             int statusLen = String.valueOf(pluginResult.getStatus()).length();
             int ret = 2 + statusLen + 1 + jsPayloadOrCallbackId.length() + 1;
-            return ret + calculateEncodedLengthHelper(pluginResult);
+            if (binaryPayloadToken != null) {
+                return ret + 1 + BINARY_PAYLOAD_URL_PREFIX.length() + binaryPayloadToken.length();
             }
+            return ret + calculateEncodedLengthHelper(pluginResult);
+        }
 
         static void encodeAsMessageHelper(StringBuilder sb, PluginResult pluginResult) {
             switch (pluginResult.getMessageType()) {
@@ -414,8 +1493,8 @@ public class NativeToJsMessageQueue {
                     sb.append('N');
                     break;
                 case PluginResult.MESSAGE_TYPE_NUMBER: // n
-                    sb.append('n')
-                      .append(pluginResult.getMessage());
+                    sb.append('n');
+                    pluginResult.appendEncodedNumber(sb);
                     break;
                 case PluginResult.MESSAGE_TYPE_STRING: // s
                     sb.append('s');
@@ -429,6 +1508,14 @@ public class NativeToJsMessageQueue {
                     sb.append('A');
                     sb.append(pluginResult.getMessage());
                     break;
+                case PluginResult.MESSAGE_TYPE_DOUBLE_ARRAY: // D
+                    sb.append('D');
+                    pluginResult.appendEncodedArray(sb);
+                    break;
+                case PluginResult.MESSAGE_TYPE_INT_ARRAY: // I
+                    sb.append('I');
+                    pluginResult.appendEncodedArray(sb);
+                    break;
                 case PluginResult.MESSAGE_TYPE_MULTIPART:
                     sb.append('M');
                     for (int i = 0; i < pluginResult.getMultipartMessagesSize(); i++) {
@@ -440,7 +1527,13 @@ public class NativeToJsMessageQueue {
                     break;
                 case PluginResult.MESSAGE_TYPE_JSON:
                 default:
-                    sb.append(pluginResult.getMessage()); // [ or {
+                    // Written straight from the tree, so that the message is never a String of its own.
+                    Object json = pluginResult.getJsonMessage();
+                    if (json != null) {
+                        JsonWriter.write(sb, json); // [ or {
+                    } else {
+                        sb.append(pluginResult.getMessage());
+                    }
             }
         }
         
@@ -462,9 +1555,25 @@ public class NativeToJsMessageQueue {
               .append(jsPayloadOrCallbackId)
               .append(' ');
 
+            // Only called by pack(), so sb is packed.
+            valueStart = sb.length();
+            if (binaryPayloadToken != null) {
+                sb.append('B')
+                  .append(BINARY_PAYLOAD_URL_PREFIX)
+                  .append(binaryPayloadToken);
+                return;
+            }
             encodeAsMessageHelper(sb, pluginResult);
         }
 
+        void encodeAsBinary(BinaryMessageWriter writer) {
+            if (pluginResult == null) {
+                writer.writeJavaScript(jsPayloadOrCallbackId);
+            } else {
+                writer.writePluginResult(jsPayloadOrCallbackId, pluginResult, packed, valueStart);
+            }
+        }
+
         void encodeAsJsMessage(StringBuilder sb) {
             if (pluginResult == null) {
                 sb.append(jsPayloadOrCallbackId);
@@ -489,6 +1598,16 @@ public class NativeToJsMessageQueue {
                           .append(pluginResult.getMessage())
                           .append("')");
                         break;
+                    case PluginResult.MESSAGE_TYPE_DOUBLE_ARRAY:
+                    case PluginResult.MESSAGE_TYPE_INT_ARRAY:
+                        sb.append(pluginResult.getMessageType() == PluginResult.MESSAGE_TYPE_DOUBLE_ARRAY ? "new Float64Array(" : "new Int32Array(")
+                          .append("cordova.require('cordova/base64').toArrayBuffer('")
+                          .append(pluginResult.getMessage())
+                          .append("'))");
+                        break;
+                    case PluginResult.MESSAGE_TYPE_JSON:
+                        sb.append(packed, valueStart, packed.length());
+                        break;
                     default:
                     sb.append(pluginResult.getMessage());
                 }
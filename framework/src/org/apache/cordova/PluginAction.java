@@ -0,0 +1,60 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a public method of a CordovaPlugin as the handler for an exec() action,
+ * as an alternative to overriding execute(). The plugin's actions are looked up
+ * in a table that is built once per plugin class, and exec() args are converted
+ * to the method's parameter types:
+ *
+ *   CallbackContext     The call's callback context (does not consume an arg).
+ *   CordovaArgs         All of the args (does not consume an arg).
+ *   int, long, double, boolean
+ *                       Required. A missing or mistyped arg results in JSON_EXCEPTION.
+ *   String, JSONObject, JSONArray, byte[] (ArrayBuffer)
+ *                       Optional. null when missing or null.
+ *
+ * Methods that take a CallbackContext are responsible for sending a result.
+ * For methods that do not, the return value (void, PluginResult, String, int,
+ * long, float, double, boolean, JSONObject, JSONArray, double[] or int[]) is sent
+ * as an OK result when they return. void methods send an empty string.
+ *
+ * Actions without an annotated method are passed to execute() as usual.
+ *
+ * The thread the method is called on can be set with thread (see ExecThread).
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface PluginAction {
+    /**
+     * The name of the action. Defaults to the name of the method.
+     */
+    String value() default "";
+
+    /**
+     * The thread to run the action on. Defaults to the plugin's exec-thread.
+     */
+    ExecThread thread() default ExecThread.DEFAULT;
+}
@@ -0,0 +1,255 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Maps the action names of a CordovaPlugin class to its @PluginAction methods.
+ */
+final class PluginActionTable {
+    private static final String TAG = "PluginActionTable";
+
+    // Kinds of parameters.
+    private static final int PARAM_CALLBACK_CONTEXT = 0;
+    private static final int PARAM_ARGS = 1;
+    private static final int PARAM_INT = 2;
+    private static final int PARAM_LONG = 3;
+    private static final int PARAM_DOUBLE = 4;
+    private static final int PARAM_BOOLEAN = 5;
+    private static final int PARAM_STRING = 6;
+    private static final int PARAM_JSON_OBJECT = 7;
+    private static final int PARAM_JSON_ARRAY = 8;
+    private static final int PARAM_ARRAY_BUFFER = 9;
+
+    /** Tables are immutable once built, so they are shared by all instances of a class. */
+    private static final ConcurrentHashMap<Class<?>, PluginActionTable> tables = new ConcurrentHashMap<Class<?>, PluginActionTable>();
+
+    /** Used in the cache for classes with no @PluginAction methods. */
+    private static final PluginActionTable EMPTY = new PluginActionTable(new HashMap<String, Handler>());
+
+    private final HashMap<String, Handler> handlers;
+
+    private static class Handler {
+        final Method method;
+        final int[] paramKinds;
+        final boolean sendsOwnResult;
+        final ExecThread thread;
+
+        Handler(Method method, int[] paramKinds, boolean sendsOwnResult, ExecThread thread) {
+            this.method = method;
+            this.paramKinds = paramKinds;
+            this.sendsOwnResult = sendsOwnResult;
+            this.thread = thread;
+        }
+    }
+
+    private PluginActionTable(HashMap<String, Handler> handlers) {
+        this.handlers = handlers;
+    }
+
+    /**
+     * Returns the table for the given plugin class, or null if it has no @PluginAction methods.
+     */
+    static PluginActionTable forClass(Class<? extends CordovaPlugin> pluginClass) {
+        PluginActionTable ret = tables.get(pluginClass);
+        if (ret == null) {
+            ret = build(pluginClass);
+            tables.put(pluginClass, ret);
+        }
+        return ret == EMPTY ? null : ret;
+    }
+
+    private static PluginActionTable build(Class<? extends CordovaPlugin> pluginClass) {
+        HashMap<String, Handler> handlers = new HashMap<String, Handler>();
+        for (Method method : pluginClass.getMethods()) {
+            PluginAction annotation = method.getAnnotation(PluginAction.class);
+            if (annotation == null) {
+                continue;
+            }
+            String action = annotation.value().length() > 0 ? annotation.value() : method.getName();
+            Class<?>[] paramTypes = method.getParameterTypes();
+            int[] paramKinds = new int[paramTypes.length];
+            boolean sendsOwnResult = false;
+            boolean valid = true;
+            for (int i = 0; i < paramTypes.length; ++i) {
+                paramKinds[i] = getParamKind(paramTypes[i]);
+                if (paramKinds[i] < 0) {
+                    LOG.e(TAG, "Unsupported parameter type " + paramTypes[i].getName() + " for @PluginAction " + pluginClass.getName() + "." + method.getName());
+                    valid = false;
+                }
+                sendsOwnResult |= paramKinds[i] == PARAM_CALLBACK_CONTEXT;
+            }
+            if (!valid) {
+                continue;
+            }
+            if (handlers.containsKey(action)) {
+                LOG.e(TAG, "Duplicate @PluginAction \"" + action + "\" in " + pluginClass.getName());
+                continue;
+            }
+            // Allows plugins whose class is not public.
+            method.setAccessible(true);
+            handlers.put(action, new Handler(method, paramKinds, sendsOwnResult, annotation.thread()));
+        }
+        return handlers.isEmpty() ? EMPTY : new PluginActionTable(handlers);
+    }
+
+    private static int getParamKind(Class<?> type) {
+        if (type == CallbackContext.class) {
+            return PARAM_CALLBACK_CONTEXT;
+        } else if (type == CordovaArgs.class) {
+            return PARAM_ARGS;
+        } else if (type == int.class) {
+            return PARAM_INT;
+        } else if (type == long.class) {
+            return PARAM_LONG;
+        } else if (type == double.class) {
+            return PARAM_DOUBLE;
+        } else if (type == boolean.class) {
+            return PARAM_BOOLEAN;
+        } else if (type == String.class) {
+            return PARAM_STRING;
+        } else if (type == JSONObject.class) {
+            return PARAM_JSON_OBJECT;
+        } else if (type == JSONArray.class) {
+            return PARAM_JSON_ARRAY;
+        } else if (type == byte[].class) {
+            return PARAM_ARRAY_BUFFER;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the thread declared for the given action, or DEFAULT if there is none.
+     */
+    ExecThread getExecThread(String action) {
+        Handler handler = handlers.get(action);
+        return handler == null ? ExecThread.DEFAULT : handler.thread;
+    }
+
+    /**
+     * Calls the method for the given action. Returns false if there is none.
+     */
+    boolean dispatch(CordovaPlugin plugin, String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+        Handler handler = handlers.get(action);
+        if (handler == null) {
+            return false;
+        }
+        int[] paramKinds = handler.paramKinds;
+        Object[] params = new Object[paramKinds.length];
+        int argIndex = 0;
+        for (int i = 0; i < paramKinds.length; ++i) {
+            if (paramKinds[i] == PARAM_CALLBACK_CONTEXT) {
+                params[i] = callbackContext;
+                continue;
+            }
+            switch (paramKinds[i]) {
+                case PARAM_ARGS:
+                    params[i] = args;
+                    continue;
+                case PARAM_INT:
+                    params[i] = args.getInt(argIndex);
+                    break;
+                case PARAM_LONG:
+                    params[i] = args.getLong(argIndex);
+                    break;
+                case PARAM_DOUBLE:
+                    params[i] = args.getDouble(argIndex);
+                    break;
+                case PARAM_BOOLEAN:
+                    params[i] = args.getBoolean(argIndex);
+                    break;
+                case PARAM_STRING:
+                    params[i] = args.isNull(argIndex) ? null : args.getString(argIndex);
+                    break;
+                case PARAM_JSON_OBJECT:
+                    params[i] = args.optJSONObject(argIndex);
+                    break;
+                case PARAM_JSON_ARRAY:
+                    params[i] = args.optJSONArray(argIndex);
+                    break;
+                case PARAM_ARRAY_BUFFER:
+                    params[i] = args.isNull(argIndex) ? null : args.getArrayBuffer(argIndex);
+                    break;
+            }
+            argIndex++;
+        }
+
+        Object ret;
+        try {
+            ret = handler.method.invoke(plugin, params);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        if (!handler.sendsOwnResult) {
+            callbackContext.sendPluginResult(toPluginResult(ret));
+        }
+        return true;
+    }
+
+    /**
+     * Converts the return value of an action to the OK result that is sent for it.
+     */
+    static PluginResult toPluginResult(Object value) {
+        if (value == null) {
+            // The same result that plugins have always sent for actions without a value.
+            return PluginResult.getSharedResult(PluginResult.Status.OK, "");
+        } else if (value instanceof PluginResult) {
+            return (PluginResult) value;
+        } else if (value instanceof String) {
+            return PluginResult.getSharedResult(PluginResult.Status.OK, (String) value);
+        } else if (value instanceof Integer) {
+            return new PluginResult(PluginResult.Status.OK, (Integer) value);
+        } else if (value instanceof Long) {
+            return new PluginResult(PluginResult.Status.OK, (Long) value);
+        } else if (value instanceof Float) {
+            return new PluginResult(PluginResult.Status.OK, (Float) value);
+        } else if (value instanceof Double) {
+            return new PluginResult(PluginResult.Status.OK, (Double) value);
+        } else if (value instanceof Boolean) {
+            return new PluginResult(PluginResult.Status.OK, (Boolean) value);
+        } else if (value instanceof JSONObject) {
+            return new PluginResult(PluginResult.Status.OK, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            return new PluginResult(PluginResult.Status.OK, (JSONArray) value);
+        } else if (value instanceof double[]) {
+            return new PluginResult(PluginResult.Status.OK, (double[]) value);
+        } else if (value instanceof int[]) {
+            return new PluginResult(PluginResult.Status.OK, (int[]) value);
+        }
+        return new PluginResult(PluginResult.Status.OK, value.toString());
+    }
+}
@@ -42,14 +42,27 @@ public final class PluginEntry {
 
     /**
      * Flag that indicates the plugin object should be created when PluginManager is initialized.
+     * Unless onloadInBackground is set, it is created on the UI thread once the page load has
+     * started, or before the first exec() call to the plugin or event sent to plugins.
      */
     public final boolean onload;
 
+    /**
+     * Flag that indicates the plugin's initialization is thread-safe, so an onload plugin
+     * can be created on a background thread, concurrently with the others.
+     */
+    public final boolean onloadInBackground;
+
+    /**
+     * The thread that exec() calls to the plugin are run on.
+     */
+    public final ExecThread execThread;
+
     /**
      * Constructs with a CordovaPlugin already instantiated.
      */
     public PluginEntry(String service, CordovaPlugin plugin) {
-        this(service, plugin.getClass().getName(), true, plugin);
+        this(service, plugin.getClass().getName(), true, false, ExecThread.DEFAULT, plugin);
     }
 
     /**
@@ -58,13 +71,36 @@ public final class PluginEntry {
      * @param onload                Create plugin object when HTML page is loaded
      */
     public PluginEntry(String service, String pluginClass, boolean onload) {
-        this(service, pluginClass, onload, null);
+        this(service, pluginClass, onload, false, ExecThread.DEFAULT, null);
+    }
+
+    /**
+     * @param service               The name of the service
+     * @param pluginClass           The plugin class name
+     * @param onload                Create plugin object when HTML page is loaded
+     * @param execThread            The thread that exec() calls are run on
+     */
+    public PluginEntry(String service, String pluginClass, boolean onload, ExecThread execThread) {
+        this(service, pluginClass, onload, false, execThread, null);
+    }
+
+    /**
+     * @param service               The name of the service
+     * @param pluginClass           The plugin class name
+     * @param onload                Create plugin object when HTML page is loaded
+     * @param onloadInBackground    Create it on a background thread
+     * @param execThread            The thread that exec() calls are run on
+     */
+    public PluginEntry(String service, String pluginClass, boolean onload, boolean onloadInBackground, ExecThread execThread) {
+        this(service, pluginClass, onload, onloadInBackground, execThread, null);
     }
 
-    private PluginEntry(String service, String pluginClass, boolean onload, CordovaPlugin plugin) {
+    private PluginEntry(String service, String pluginClass, boolean onload, boolean onloadInBackground, ExecThread execThread, CordovaPlugin plugin) {
         this.service = service;
         this.pluginClass = pluginClass;
         this.onload = onload;
+        this.onloadInBackground = onloadInBackground;
+        this.execThread = execThread;
         this.plugin = plugin;
     }
 }
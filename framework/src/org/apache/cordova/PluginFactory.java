@@ -0,0 +1,34 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+/**
+ * Creates plugins without reflection.
+ *
+ * The Gradle build generates an implementation named GeneratedPluginFactory (in this
+ * package) from the plugins in res/xml/config.xml, which PluginManager uses when
+ * it is present. Plugins that it does not know are created through reflection.
+ */
+public interface PluginFactory {
+    /**
+     * Returns a new instance of the given plugin class, or null if this factory does
+     * not know the class.
+     */
+    CordovaPlugin newPlugin(String className);
+}
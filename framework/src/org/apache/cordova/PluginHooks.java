@@ -0,0 +1,124 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.net.Uri;
+
+/**
+ * The CordovaPlugin methods that PluginManager calls on every plugin, and which
+ * of them each plugin class overrides.
+ */
+final class PluginHooks {
+    static final int ON_PAUSE = 0;
+    static final int ON_RESUME = 1;
+    static final int ON_START = 2;
+    static final int ON_STOP = 3;
+    static final int ON_DESTROY = 4;
+    static final int ON_MESSAGE = 5;
+    static final int ON_NEW_INTENT = 6;
+    static final int ON_RESET = 7;
+    static final int ON_CONFIGURATION_CHANGED = 8;
+    static final int ON_RECEIVED_HTTP_AUTH_REQUEST = 9;
+    static final int ON_RECEIVED_CLIENT_CERT_REQUEST = 10;
+    static final int SHOULD_ALLOW_REQUEST = 11;
+    static final int SHOULD_ALLOW_NAVIGATION = 12;
+    static final int SHOULD_ALLOW_BRIDGE_ACCESS = 13;
+    static final int SHOULD_OPEN_EXTERNAL_URL = 14;
+    static final int ON_OVERRIDE_URL_LOADING = 15;
+    static final int REMAP_URI = 16;
+    static final int COUNT = 17;
+
+    // Indexed by the constants above.
+    private static final String[] METHOD_NAMES = {
+        "onPause",
+        "onResume",
+        "onStart",
+        "onStop",
+        "onDestroy",
+        "onMessage",
+        "onNewIntent",
+        "onReset",
+        "onConfigurationChanged",
+        "onReceivedHttpAuthRequest",
+        "onReceivedClientCertRequest",
+        "shouldAllowRequest",
+        "shouldAllowNavigation",
+        "shouldAllowBridgeAccess",
+        "shouldOpenExternalUrl",
+        "onOverrideUrlLoading",
+        "remapUri"
+    };
+    private static final Class<?>[][] METHOD_PARAMS = {
+        { boolean.class },
+        { boolean.class },
+        {},
+        {},
+        {},
+        { String.class, Object.class },
+        { Intent.class },
+        {},
+        { Configuration.class },
+        { CordovaWebView.class, ICordovaHttpAuthHandler.class, String.class, String.class },
+        { CordovaWebView.class, ICordovaClientCertRequest.class },
+        { String.class },
+        { String.class },
+        { String.class },
+        { String.class },
+        { String.class },
+        { Uri.class }
+    };
+
+    private static final ConcurrentHashMap<Class<?>, Integer> overriddenHooks = new ConcurrentHashMap<Class<?>, Integer>();
+
+    private PluginHooks() {
+    }
+
+    /**
+     * Returns a bit mask of the hooks that the plugin class overrides, with bit (1 << hook) set for each.
+     */
+    static int getOverriddenHooks(Class<? extends CordovaPlugin> pluginClass) {
+        Integer ret = overriddenHooks.get(pluginClass);
+        if (ret == null) {
+            int mask = 0;
+            for (int i = 0; i < COUNT; ++i) {
+                try {
+                    Method method = pluginClass.getMethod(METHOD_NAMES[i], METHOD_PARAMS[i]);
+                    if (method.getDeclaringClass() != CordovaPlugin.class) {
+                        mask |= 1 << i;
+                    }
+                } catch (NoSuchMethodException e) {
+                    // Should not happen, but calling the method is always safe.
+                    mask |= 1 << i;
+                }
+            }
+            // The default shouldAllowBridgeAccess() returns shouldAllowNavigation().
+            if ((mask & (1 << SHOULD_ALLOW_NAVIGATION)) != 0) {
+                mask |= 1 << SHOULD_ALLOW_BRIDGE_ACCESS;
+            }
+            ret = mask;
+            overriddenHooks.put(pluginClass, ret);
+        }
+        return ret;
+    }
+}
@@ -18,15 +18,38 @@
  */
 package org.apache.cordova;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -37,16 +60,89 @@ import android.util.Log;
  */
 public class PluginManager {
     private static String TAG = "PluginManager";
+
+    // Kinds of exec() latency. See getExecLatency().
+    public static final int LATENCY_EXECUTE = 0;
+    public static final int LATENCY_RESULT = 1;
+    public static final int LATENCY_DELIVERY = 2;
+    private static final String[] LATENCY_NAMES = { "execute", "result", "delivery" };
     private static final int SLOW_EXEC_WARNING_THRESHOLD = Debug.isDebuggerConnected() ? 60 : 16;
+    // Number of threads that BACKGROUND and SERIAL exec() calls share. Further calls wait in a queue.
+    private static final int EXEC_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final String GENERATED_PLUGIN_FACTORY = "org.apache.cordova.GeneratedPluginFactory";
+    private static PluginFactory generatedPluginFactory;
+    private static boolean isGeneratedPluginFactoryLoaded;
 
-    // List of service entries
-    private final LinkedHashMap<String, CordovaPlugin> pluginMap = new LinkedHashMap<String, CordovaPlugin>();
-    private final LinkedHashMap<String, PluginEntry> entryMap = new LinkedHashMap<String, PluginEntry>();
+    // The plugins that have been created, by service name. Read without locking from any thread.
+    private final ConcurrentHashMap<String, CordovaPlugin> pluginMap = new ConcurrentHashMap<String, CordovaPlugin>();
+    // List of service entries. Replaced rather than modified (under entryMapLock), so that it can
+    // be read and iterated without locking while services are added.
+    private volatile LinkedHashMap<String, PluginEntry> entryMap = new LinkedHashMap<String, PluginEntry>();
+    private final Object entryMapLock = new Object();
+    // Held while creating the plugin for a service, so that it is created at most once.
+    private final ConcurrentHashMap<String, Object> pluginCreationLocks = new ConcurrentHashMap<String, Object>();
 
     private final CordovaInterface ctx;
     private final CordovaWebView app;
     private boolean isInitialized;
 
+    // Created when first needed. Idle threads time out, so it is never shut down.
+    private ThreadPoolExecutor execPool;
+    private final HashMap<String, SerialExecutor> serialExecutors = new HashMap<String, SerialExecutor>();
+
+    // Incremented by onReset(). CallbackContexts from exec() calls made before then are cancelled.
+    // Only written by the UI thread.
+    private volatile int pageGeneration;
+
+    // Tasks from submitAsync() that have not completed.
+    private final Set<Future<?>> asyncTasks = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+
+    // Startups of the onload plugins that startupPlugins() has not created yet: a task on the
+    // exec pool for each plugin with thread-safe initialization, and one task posted to the UI
+    // thread for the others (see finishStartups()). Guarded by startupLock.
+    private final ArrayList<FutureTask<?>> backgroundStartups = new ArrayList<FutureTask<?>>();
+    private FutureTask<?> uiThreadStartup;
+    private volatile boolean hasPendingStartups;
+    // Set on the threads of background startups, which must not wait for the other startups.
+    private static final ThreadLocal<Boolean> isStartupThread = new ThreadLocal<Boolean>();
+    // How long events wait for startups that are in progress on other threads.
+    private static final long STARTUP_WAIT_MILLIS = 2000;
+    // Incremented when the plugins are replaced, so that startups for the old ones are dropped.
+    private int startupGeneration;
+    private final Object startupLock = new Object();
+    // The created plugins that override each of the PluginHooks, in entry order.
+    // Rebuilt on first use after pluginMap changes.
+    private volatile HookTable hookTable;
+    private final Object hookTableLock = new Object();
+
+    // Decisions of the shouldAllow*() plugins, by hook and URL prefix (see getUrlDecisionKey()).
+    // Used only when all of the hook's plugins declare that their decisions are cacheable.
+    private static final int URL_DECISION_CACHE_SIZE = 256;
+    private final LinkedHashMap<String, Boolean> urlDecisionCache = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > URL_DECISION_CACHE_SIZE;
+        }
+    };
+    private int urlDecisionCacheGeneration;
+    private long urlDecisionCacheHits;
+    private long urlDecisionCacheMisses;
+
+    private static class HookTable {
+        final CordovaPlugin[][] subscribers = new CordovaPlugin[PluginHooks.COUNT][];
+        // Whether every subscriber to the hook has cacheable URL decisions.
+        final boolean[] cacheable = new boolean[PluginHooks.COUNT];
+    }
+    // Time taken to create and initialize each plugin, in microseconds.
+    private final LinkedHashMap<String, Long> pluginInitTimes = new LinkedHashMap<String, Long>();
+
+    // Histograms of each kind of latency, by service and action. Since action names come
+    // from JS, each service's actions beyond the first MAX_LATENCY_ACTIONS share one entry.
+    private static final int MAX_LATENCY_ACTIONS = 64;
+    private static final String OTHER_LATENCY_ACTIONS = "(other)";
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram[]>> execLatencies =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram[]>>();
+
     public PluginManager(CordovaWebView cordovaWebView, CordovaInterface cordova, Collection<PluginEntry> pluginEntries) {
         this.ctx = cordova;
         this.app = cordovaWebView;
@@ -59,10 +155,14 @@ public class PluginManager {
 
     public void setPluginEntries(Collection<PluginEntry> pluginEntries) {
         if (isInitialized) {
+            cancelStartups();
             this.onPause(false);
             this.onDestroy();
             pluginMap.clear();
-            entryMap.clear();
+            synchronized (entryMapLock) {
+                entryMap = new LinkedHashMap<String, PluginEntry>();
+            }
+            onPluginsChanged();
         }
         for (PluginEntry entry : pluginEntries) {
             addService(entry);
@@ -78,25 +178,445 @@ public class PluginManager {
     public void init() {
         LOG.d(TAG, "init()");
         isInitialized = true;
+        cancelStartups();
         this.onPause(false);
         this.onDestroy();
         pluginMap.clear();
+        onPluginsChanged();
         this.startupPlugins();
     }
 
     /**
-     * Create plugins objects that have onload set.
+     * Schedule the creation of the plugins that have onload set.
+     * Those whose initialization is thread-safe are created concurrently, on background threads.
+     * The others are created on the UI thread once it has finished the current task (e.g.
+     * starting the page load), so that they do not delay it.
      */
     private void startupPlugins() {
+        synchronized (startupLock) {
+            final int generation = startupGeneration;
+            final ArrayList<PluginEntry> uiThreadEntries = new ArrayList<PluginEntry>();
+            for (final PluginEntry entry : entryMap.values()) {
+                if (!entry.onload) {
+                    continue;
+                }
+                if (entry.onloadInBackground && entry.plugin == null) {
+                    FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                        public void run() {
+                            isStartupThread.set(Boolean.TRUE);
+                            try {
+                                startupPlugin(entry, generation);
+                            } finally {
+                                isStartupThread.remove();
+                            }
+                        }
+                    }, null);
+                    backgroundStartups.add(task);
+                    getExecPool().execute(task);
+                } else {
+                    uiThreadEntries.add(entry);
+                }
+            }
+            if (!uiThreadEntries.isEmpty()) {
+                uiThreadStartup = new FutureTask<Void>(new Runnable() {
+                    public void run() {
+                        for (PluginEntry entry : uiThreadEntries) {
+                            startupPlugin(entry, generation);
+                        }
+                    }
+                }, null);
+                new Handler(Looper.getMainLooper()).post(uiThreadStartup);
+            }
+            hasPendingStartups = !backgroundStartups.isEmpty() || uiThreadStartup != null;
+        }
+    }
+
+    /**
+     * Drops the pending startups of the current plugins, which are about to be replaced.
+     */
+    private void cancelStartups() {
+        synchronized (startupLock) {
+            startupGeneration++;
+            for (FutureTask<?> task : backgroundStartups) {
+                task.cancel(false);
+            }
+            backgroundStartups.clear();
+            if (uiThreadStartup != null) {
+                uiThreadStartup.cancel(false);
+                uiThreadStartup = null;
+            }
+            hasPendingStartups = false;
+        }
+    }
+
+    /**
+     * Creates an onload plugin, unless getPlugin() already has or the plugins have since been replaced.
+     */
+    private void startupPlugin(PluginEntry entry, int generation) {
+        synchronized (getPluginCreationLock(entry.service)) {
+            if (pluginMap.containsKey(entry.service)) {
+                return;
+            }
+            synchronized (startupLock) {
+                if (generation != startupGeneration) {
+                    return;
+                }
+            }
+            CordovaPlugin plugin = createPlugin(entry);
+            if (plugin == null) {
+                return;
+            }
+            synchronized (startupLock) {
+                if (generation != startupGeneration) {
+                    // Replaced while it was being created.
+                    return;
+                }
+                pluginMap.put(entry.service, plugin);
+            }
+            onPluginsChanged();
+        }
+    }
+
+    /**
+     * Finishes the startups of the onload plugins, so that events reach them. On the UI thread,
+     * the UI thread's startup is run at once. Background startups that have not begun are run
+     * on this thread. Other threads wait for the UI thread's startup, and all threads wait for
+     * the background startups in progress, for up to STARTUP_WAIT_MILLIS.
+     */
+    private void finishStartups() {
+        if (!hasPendingStartups || isStartupThread.get() != null) {
+            return;
+        }
+        FutureTask<?>[] tasks;
+        FutureTask<?> uiThreadTask;
+        synchronized (startupLock) {
+            tasks = backgroundStartups.toArray(new FutureTask<?>[backgroundStartups.size()]);
+            uiThreadTask = uiThreadStartup;
+        }
+        boolean onUiThread = Looper.myLooper() == Looper.getMainLooper();
+        if (uiThreadTask != null && onUiThread) {
+            // Returns at once if this is a call from within it.
+            uiThreadTask.run();
+        }
+        for (FutureTask<?> task : tasks) {
+            // Returns at once if the task has started on the exec pool.
+            task.run();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STARTUP_WAIT_MILLIS);
+        try {
+            if (uiThreadTask != null && !onUiThread) {
+                uiThreadTask.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            for (FutureTask<?> task : tasks) {
+                task.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException e) {
+            LOG.w(TAG, "Plugin startup took over " + STARTUP_WAIT_MILLIS + "ms, so it misses events until it is done");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            // The plugins were replaced.
+        } catch (ExecutionException e) {
+            LOG.e(TAG, "Failed to initialize plugin", e.getCause());
+        }
+        synchronized (startupLock) {
+            for (Iterator<FutureTask<?>> it = backgroundStartups.iterator(); it.hasNext(); ) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+            if (uiThreadStartup != null && uiThreadStartup.isDone()) {
+                uiThreadStartup = null;
+            }
+            hasPendingStartups = !backgroundStartups.isEmpty() || uiThreadStartup != null;
+        }
+    }
+
+    private CordovaPlugin createPlugin(PluginEntry entry) {
+        long startTime = System.nanoTime();
+        CordovaPlugin ret = entry.plugin != null ? entry.plugin : instantiatePlugin(entry.pluginClass);
+        if (ret == null) {
+            return null;
+        }
+        ret.privateInitialize(entry.service, ctx, app, app.getPreferences());
+        long duration = (System.nanoTime() - startTime) / 1000;
+        synchronized (pluginInitTimes) {
+            pluginInitTimes.put(entry.service, duration);
+        }
+        LOG.d(TAG, "Initialized " + entry.service + " in " + duration + "us on " + Thread.currentThread().getName());
+        return ret;
+    }
+
+    private void onPluginsChanged() {
+        synchronized (hookTableLock) {
+            hookTable = null;
+        }
+        clearUrlDecisionCache();
+    }
+
+    /**
+     * Returns the created plugins that override the given PluginHooks method.
+     */
+    private CordovaPlugin[] getSubscribers(int hook) {
+        return getHookTable().subscribers[hook];
+    }
+
+    private HookTable getHookTable() {
+        finishStartups();
+        HookTable ret = hookTable;
+        if (ret == null) {
+            synchronized (hookTableLock) {
+                ret = hookTable;
+                if (ret == null) {
+                    ret = buildHookTable();
+                    hookTable = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private HookTable buildHookTable() {
+        ArrayList<CordovaPlugin> plugins = new ArrayList<CordovaPlugin>();
         for (PluginEntry entry : entryMap.values()) {
-            // Add a null entry to for each non-startup plugin to avoid ConcurrentModificationException
-            // When iterating plugins.
-            if (entry.onload) {
-                getPlugin(entry.service);
+            CordovaPlugin plugin = pluginMap.get(entry.service);
+            if (plugin != null) {
+                plugins.add(plugin);
+            }
+        }
+        int[] masks = new int[plugins.size()];
+        for (int i = 0; i < masks.length; ++i) {
+            masks[i] = PluginHooks.getOverriddenHooks(plugins.get(i).getClass());
+        }
+        HookTable ret = new HookTable();
+        ArrayList<CordovaPlugin> subscribers = new ArrayList<CordovaPlugin>(masks.length);
+        for (int hook = 0; hook < PluginHooks.COUNT; ++hook) {
+            subscribers.clear();
+            boolean cacheable = true;
+            for (int i = 0; i < masks.length; ++i) {
+                if ((masks[i] & (1 << hook)) != 0) {
+                    subscribers.add(plugins.get(i));
+                    cacheable &= plugins.get(i).isUrlDecisionCacheable();
+                }
+            }
+            ret.subscribers[hook] = subscribers.toArray(new CordovaPlugin[subscribers.size()]);
+            ret.cacheable[hook] = cacheable;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the first non-null decision of the plugins for a shouldAllow*() hook, from the
+     * cache when the plugins allow it.
+     */
+    private Boolean getUrlDecision(int hook, String url) {
+        HookTable table = getHookTable();
+        CordovaPlugin[] plugins = table.subscribers[hook];
+        if (plugins.length == 0) {
+            return null;
+        }
+        String key = table.cacheable[hook] ? getUrlDecisionKey(hook, url) : null;
+        int generation = 0;
+        if (key != null) {
+            synchronized (urlDecisionCache) {
+                if (urlDecisionCache.containsKey(key)) {
+                    urlDecisionCacheHits++;
+                    return urlDecisionCache.get(key);
+                }
+                urlDecisionCacheMisses++;
+                generation = urlDecisionCacheGeneration;
+            }
+        }
+        Boolean ret = null;
+        for (CordovaPlugin plugin : plugins) {
+            if (hook == PluginHooks.SHOULD_ALLOW_REQUEST) {
+                ret = plugin.shouldAllowRequest(url);
+            } else if (hook == PluginHooks.SHOULD_ALLOW_NAVIGATION) {
+                ret = plugin.shouldAllowNavigation(url);
             } else {
-                pluginMap.put(entry.service, null);
+                ret = plugin.shouldAllowBridgeAccess(url);
+            }
+            if (ret != null) {
+                break;
+            }
+        }
+        if (key != null) {
+            synchronized (urlDecisionCache) {
+                // Don't store decisions made before the cache was cleared.
+                if (generation == urlDecisionCacheGeneration) {
+                    urlDecisionCache.put(key, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the cache key for a URL: the hook, the URL's origin (with the scheme and host in
+     * lowercase, and without userinfo or a default port), and its path up to the last "/".
+     * Returns null for URLs without an authority (data:, blob:, about:, ...), which are not cached.
+     */
+    static String getUrlDecisionKey(int hook, String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return null;
+        }
+        int authorityStart = schemeEnd + 3;
+        int end = url.length();
+        int queryStart = url.indexOf('?', authorityStart);
+        if (queryStart >= 0) {
+            end = queryStart;
+        }
+        int fragmentStart = url.indexOf('#', authorityStart);
+        if (fragmentStart >= 0 && fragmentStart < end) {
+            end = fragmentStart;
+        }
+        int authorityEnd = url.indexOf('/', authorityStart);
+        if (authorityEnd < 0 || authorityEnd > end) {
+            authorityEnd = end;
+        }
+        int hostStart = Math.max(authorityStart, url.lastIndexOf('@', authorityEnd - 1) + 1);
+        int portStart = url.lastIndexOf(':', authorityEnd - 1);
+        if (portStart < hostStart || url.lastIndexOf(']', authorityEnd - 1) > portStart) {
+            // No port, or the colon is part of an IPv6 address.
+            portStart = authorityEnd;
+        }
+        String scheme = url.substring(0, schemeEnd).toLowerCase(Locale.US);
+        StringBuilder key = new StringBuilder(end + 8);
+        key.append(hook).append(' ').append(scheme).append("://");
+        key.append(url.substring(hostStart, portStart).toLowerCase(Locale.US));
+        String port = url.substring(Math.min(portStart + 1, authorityEnd), authorityEnd);
+        if (port.length() > 0 && !port.equals(getDefaultPort(scheme))) {
+            key.append(':').append(port);
+        }
+        int pathEnd = url.lastIndexOf('/', end - 1);
+        if (pathEnd < authorityEnd) {
+            // No path.
+            key.append('/');
+        } else {
+            key.append(url, authorityEnd, pathEnd + 1);
+        }
+        return key.toString();
+    }
+
+    private static String getDefaultPort(String scheme) {
+        if ("http".equals(scheme) || "ws".equals(scheme)) {
+            return "80";
+        } else if ("https".equals(scheme) || "wss".equals(scheme)) {
+            return "443";
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the cached decisions of the shouldAllowRequest(), shouldAllowNavigation() and
+     * shouldAllowBridgeAccess() plugins. Plugins whose decisions are cacheable should call this
+     * when their policy changes.
+     */
+    public void clearUrlDecisionCache() {
+        synchronized (urlDecisionCache) {
+            urlDecisionCache.clear();
+            urlDecisionCacheGeneration++;
+        }
+    }
+
+    /**
+     * Returns the number of URL decisions that were answered from the cache.
+     */
+    public long getUrlDecisionCacheHits() {
+        synchronized (urlDecisionCache) {
+            return urlDecisionCacheHits;
+        }
+    }
+
+    /**
+     * Returns the number of cacheable URL decisions that had to be made by the plugins.
+     */
+    public long getUrlDecisionCacheMisses() {
+        synchronized (urlDecisionCache) {
+            return urlDecisionCacheMisses;
+        }
+    }
+
+    /**
+     * Returns how long each plugin that has been created took to create and initialize,
+     * in microseconds, by service name.
+     */
+    public Map<String, Long> getPluginInitTimes() {
+        synchronized (pluginInitTimes) {
+            return new LinkedHashMap<String, Long>(pluginInitTimes);
+        }
+    }
+
+    /**
+     * Returns the histogram of the given kind of latency of exec() calls to the
+     * given service and action, or null if there have been none. Kinds are:
+     *
+     *   LATENCY_EXECUTE     Time spent in the plugin's execute().
+     *   LATENCY_RESULT      Time from exec() to the final result being sent, including
+     *                       any time spent waiting for the plugin's ExecThread.
+     *   LATENCY_DELIVERY    Time each result spends in the native->JS message queue.
+     */
+    public LatencyHistogram getExecLatency(String service, String action, int kind) {
+        ConcurrentHashMap<String, LatencyHistogram[]> actions = execLatencies.get(service);
+        LatencyHistogram[] histograms = actions == null ? null : actions.get(action);
+        return histograms == null ? null : histograms[kind];
+    }
+
+    /**
+     * Returns a summary of all exec() latency histograms, as
+     * { service: { action: { "execute": {...}, "result": {...}, "delivery": {...} } } }.
+     * See LatencyHistogram.toJSONObject().
+     */
+    public JSONObject getExecLatencies() {
+        JSONObject ret = new JSONObject();
+        try {
+            for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram[]>> service : execLatencies.entrySet()) {
+                JSONObject actions = new JSONObject();
+                for (Map.Entry<String, LatencyHistogram[]> action : service.getValue().entrySet()) {
+                    JSONObject histograms = new JSONObject();
+                    for (int i = 0; i < LATENCY_NAMES.length; ++i) {
+                        histograms.put(LATENCY_NAMES[i], action.getValue()[i].toJSONObject());
+                    }
+                    actions.put(action.getKey(), histograms);
+                }
+                ret.put(service.getKey(), actions);
+            }
+        } catch (JSONException e) {
+            // Not possible for non-null keys.
+            throw new RuntimeException(e);
+        }
+        return ret;
+    }
+
+    public void resetExecLatencies() {
+        execLatencies.clear();
+    }
+
+    private LatencyHistogram[] getExecLatencies(String service, String action) {
+        ConcurrentHashMap<String, LatencyHistogram[]> actions = execLatencies.get(service);
+        if (actions == null) {
+            actions = new ConcurrentHashMap<String, LatencyHistogram[]>();
+            ConcurrentHashMap<String, LatencyHistogram[]> existing = execLatencies.putIfAbsent(service, actions);
+            if (existing != null) {
+                actions = existing;
             }
         }
+        LatencyHistogram[] ret = actions.get(action);
+        if (ret == null) {
+            if (actions.size() >= MAX_LATENCY_ACTIONS) {
+                action = OTHER_LATENCY_ACTIONS;
+                ret = actions.get(action);
+            }
+            if (ret == null) {
+                ret = new LatencyHistogram[] { new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram() };
+                LatencyHistogram[] existing = actions.putIfAbsent(action, ret);
+                if (existing != null) {
+                    ret = existing;
+                }
+            }
+        }
+        return ret;
     }
 
     /**
@@ -107,6 +627,11 @@ public class PluginManager {
      * string is returned that will indicate if any errors have occurred when trying to find
      * or execute the class denoted by the clazz argument.
      *
+     * The plugin is run on the thread given by its ExecThread, which is the calling
+     * thread unless the plugin or the action declares otherwise.
+     *
+     * The call's latencies are recorded (see getExecLatency()).
+     *
      * @param service       String containing the service to run
      * @param action        String containing the action that the class is supposed to perform. This is
      *                      passed to the plugin execute method and it is up to the plugin developer
@@ -117,28 +642,64 @@ public class PluginManager {
      *                      plugin execute method.
      */
     public void exec(final String service, final String action, final String callbackId, final String rawArgs) {
-        CordovaPlugin plugin = getPlugin(service);
+        long execStartNanos = System.nanoTime();
+        final CordovaPlugin plugin = getPlugin(service);
         if (plugin == null) {
             Log.d(TAG, "exec() call to unknown plugin: " + service);
-            PluginResult cr = new PluginResult(PluginResult.Status.CLASS_NOT_FOUND_EXCEPTION);
+            PluginResult cr = PluginResult.getSharedResult(PluginResult.Status.CLASS_NOT_FOUND_EXCEPTION);
             app.sendPluginResult(cr, callbackId);
             return;
         }
-        CallbackContext callbackContext = new CallbackContext(callbackId, app);
+        final CallbackContext callbackContext = new CallbackContext(callbackId, app);
+        final LatencyHistogram[] latencies = getExecLatencies(service, action);
+        callbackContext.setLatencyHistograms(execStartNanos, latencies[LATENCY_RESULT], latencies[LATENCY_DELIVERY]);
+        callbackContext.setPluginManager(this);
+        ExecThread thread = plugin.getExecThread(action);
+        if (thread == ExecThread.DEFAULT) {
+            PluginEntry entry = entryMap.get(service);
+            thread = entry == null ? ExecThread.DEFAULT : entry.execThread;
+        }
+        if (thread == ExecThread.DEFAULT || thread == ExecThread.BRIDGE) {
+            execOnCurrentThread(plugin, service, action, rawArgs, callbackContext, latencies[LATENCY_EXECUTE], true);
+            return;
+        }
+        final boolean onUiThread = thread == ExecThread.UI;
+        Runnable task = new Runnable() {
+            public void run() {
+                execOnCurrentThread(plugin, service, action, rawArgs, callbackContext, latencies[LATENCY_EXECUTE], onUiThread);
+            }
+        };
+        if (onUiThread) {
+            ctx.getActivity().runOnUiThread(task);
+        } else if (thread == ExecThread.SERIAL) {
+            getSerialExecutor(service).execute(task);
+        } else {
+            getExecPool().execute(task);
+        }
+    }
+
+    private void execOnCurrentThread(CordovaPlugin plugin, String service, String action, String rawArgs, CallbackContext callbackContext,
+            LatencyHistogram executeLatency, boolean warnIfSlow) {
+        // The page navigated while the call was waiting for its thread.
+        if (callbackContext.isCancelled()) {
+            return;
+        }
         try {
-            long pluginStartTime = System.currentTimeMillis();
+            long pluginStartTime = System.nanoTime();
             boolean wasValidAction = plugin.execute(action, rawArgs, callbackContext);
-            long duration = System.currentTimeMillis() - pluginStartTime;
+            long durationMicros = (System.nanoTime() - pluginStartTime) / 1000;
+            executeLatency.record(durationMicros);
+            long duration = durationMicros / 1000;
 
-            if (duration > SLOW_EXEC_WARNING_THRESHOLD) {
-                Log.w(TAG, "THREAD WARNING: exec() call to " + service + "." + action + " blocked the main thread for " + duration + "ms. Plugin should use CordovaInterface.getThreadPool().");
+            if (warnIfSlow && duration > SLOW_EXEC_WARNING_THRESHOLD) {
+                Log.w(TAG, "THREAD WARNING: exec() call to " + service + "." + action + " blocked the main thread for " + duration + "ms. Plugin should use CordovaInterface.getThreadPool() or set its exec-thread.");
             }
             if (!wasValidAction) {
-                PluginResult cr = new PluginResult(PluginResult.Status.INVALID_ACTION);
+                PluginResult cr = PluginResult.getSharedResult(PluginResult.Status.INVALID_ACTION);
                 callbackContext.sendPluginResult(cr);
             }
         } catch (JSONException e) {
-            PluginResult cr = new PluginResult(PluginResult.Status.JSON_EXCEPTION);
+            PluginResult cr = PluginResult.getSharedResult(PluginResult.Status.JSON_EXCEPTION);
             callbackContext.sendPluginResult(cr);
         } catch (Exception e) {
             Log.e(TAG, "Uncaught exception from plugin", e);
@@ -146,6 +707,115 @@ public class PluginManager {
         }
     }
 
+    private synchronized ExecutorService getExecPool() {
+        if (execPool == null) {
+            execPool = new ThreadPoolExecutor(EXEC_POOL_SIZE, EXEC_POOL_SIZE, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            execPool.allowCoreThreadTimeOut(true);
+        }
+        return execPool;
+    }
+
+    private synchronized SerialExecutor getSerialExecutor(String service) {
+        SerialExecutor ret = serialExecutors.get(service);
+        if (ret == null) {
+            ret = new SerialExecutor();
+            serialExecutors.put(service, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Runs tasks on the exec pool one at a time, in the order they were added.
+     */
+    private class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean isRunning;
+
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (!isRunning) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            final Runnable next = tasks.poll();
+            isRunning = next != null;
+            if (next != null) {
+                getExecPool().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            next.run();
+                        } finally {
+                            scheduleNext();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Runs task on the exec pool, and sends its return value (see PluginAction) or
+     * exception to callbackContext, if it is non-null. The task is cancelled by
+     * onReset() and onDestroy().
+     */
+    <T> Future<T> submitAsync(Callable<T> task, CallbackContext callbackContext) {
+        AsyncResultTask<T> ret = new AsyncResultTask<T>(task, callbackContext);
+        asyncTasks.add(ret);
+        getExecPool().execute(ret);
+        return ret;
+    }
+
+    int getPageGeneration() {
+        return pageGeneration;
+    }
+
+    /**
+     * Interrupts the tasks from submitAsync() that are running, and discards those that have not started.
+     */
+    private void cancelAsyncTasks() {
+        for (Future<?> task : asyncTasks) {
+            task.cancel(true);
+        }
+    }
+
+    private class AsyncResultTask<T> extends FutureTask<T> {
+        private final CallbackContext callbackContext;
+
+        AsyncResultTask(Callable<T> task, CallbackContext callbackContext) {
+            super(task);
+            this.callbackContext = callbackContext;
+        }
+
+        @Override
+        protected void done() {
+            asyncTasks.remove(this);
+            if (isCancelled()) {
+                return;
+            }
+            PluginResult result;
+            try {
+                result = PluginActionTable.toPluginResult(get());
+            } catch (InterruptedException e) {
+                // Not possible, since the task is done.
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof JSONException) {
+                    result = PluginResult.getSharedResult(PluginResult.Status.JSON_EXCEPTION);
+                } else {
+                    Log.e(TAG, "Uncaught exception from async task", cause);
+                    result = new PluginResult(PluginResult.Status.ERROR, cause.getMessage());
+                }
+            }
+            // The task may have sent its own result.
+            if (callbackContext != null && !callbackContext.isFinished()) {
+                callbackContext.sendPluginResult(result);
+            }
+        }
+    }
+
     /**
      * Get the plugin object that implements the service.
      * If the plugin object does not already exist, then create it.
@@ -155,23 +825,51 @@ public class PluginManager {
      * @return              CordovaPlugin or null
      */
     public CordovaPlugin getPlugin(String service) {
+        if (service == null) {
+            // ConcurrentHashMap does not allow null keys.
+            return null;
+        }
         CordovaPlugin ret = pluginMap.get(service);
-        if (ret == null) {
-            PluginEntry pe = entryMap.get(service);
-            if (pe == null) {
-                return null;
+        if (ret != null) {
+            return ret;
+        }
+        PluginEntry pe = entryMap.get(service);
+        if (pe == null) {
+            return null;
+        }
+        if (pe.onload && hasPendingStartups) {
+            // Created by its startup, on the UI thread unless it is thread-safe.
+            finishStartups();
+            ret = pluginMap.get(service);
+            if (ret != null) {
+                return ret;
             }
-            if (pe.plugin != null) {
-                ret = pe.plugin;
-            } else {
-                ret = instantiatePlugin(pe.pluginClass);
+        }
+        synchronized (getPluginCreationLock(service)) {
+            ret = pluginMap.get(service);
+            if (ret == null) {
+                ret = createPlugin(pe);
+                if (ret != null) {
+                    pluginMap.put(service, ret);
+                    onPluginsChanged();
+                }
             }
-            ret.privateInitialize(service, ctx, app, app.getPreferences());
-            pluginMap.put(service, ret);
         }
         return ret;
     }
 
+    private Object getPluginCreationLock(String service) {
+        Object lock = pluginCreationLocks.get(service);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = pluginCreationLocks.putIfAbsent(service, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
     /**
      * Add a plugin class that implements a service to the service entry table.
      * This does not create the plugin object instance.
@@ -191,10 +889,14 @@ public class PluginManager {
      * @param entry             The plugin entry
      */
     public void addService(PluginEntry entry) {
-        this.entryMap.put(entry.service, entry);
+        synchronized (entryMapLock) {
+            LinkedHashMap<String, PluginEntry> newEntryMap = new LinkedHashMap<String, PluginEntry>(entryMap);
+            newEntryMap.put(entry.service, entry);
+            entryMap = newEntryMap;
+        }
         if (entry.plugin != null) {
-            entry.plugin.privateInitialize(entry.service, ctx, app, app.getPreferences());
-            pluginMap.put(entry.service, entry.plugin);
+            pluginMap.put(entry.service, createPlugin(entry));
+            onPluginsChanged();
         }
     }
 
@@ -204,10 +906,8 @@ public class PluginManager {
      * @param multitasking      Flag indicating if multitasking is turned on for app
      */
     public void onPause(boolean multitasking) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onPause(multitasking);
-            }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_PAUSE)) {
+            plugin.onPause(multitasking);
         }
     }
 
@@ -224,8 +924,8 @@ public class PluginManager {
      * 
      */
     public boolean onReceivedHttpAuthRequest(CordovaWebView view, ICordovaHttpAuthHandler handler, String host, String realm) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null && plugin.onReceivedHttpAuthRequest(app, handler, host, realm)) {
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_RECEIVED_HTTP_AUTH_REQUEST)) {
+            if (plugin.onReceivedHttpAuthRequest(app, handler, host, realm)) {
                 return true;
             }
         }
@@ -243,8 +943,8 @@ public class PluginManager {
      *
      */
     public boolean onReceivedClientCertRequest(CordovaWebView view, ICordovaClientCertRequest request) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null && plugin.onReceivedClientCertRequest(app, request)) {
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_RECEIVED_CLIENT_CERT_REQUEST)) {
+            if (plugin.onReceivedClientCertRequest(app, request)) {
                 return true;
             }
         }
@@ -257,10 +957,8 @@ public class PluginManager {
      * @param multitasking      Flag indicating if multitasking is turned on for app
      */
     public void onResume(boolean multitasking) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onResume(multitasking);
-            }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_RESUME)) {
+            plugin.onResume(multitasking);
         }
     }
 
@@ -268,10 +966,8 @@ public class PluginManager {
      * Called when the activity is becoming visible to the user.
      */
     public void onStart() {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onStart();
-            }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_START)) {
+            plugin.onStart();
         }
     }
 
@@ -279,10 +975,8 @@ public class PluginManager {
      * Called when the activity is no longer visible to the user.
      */
     public void onStop() {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onStop();
-            }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_STOP)) {
+            plugin.onStop();
         }
     }
 
@@ -290,10 +984,9 @@ public class PluginManager {
      * The final call you receive before your activity is destroyed.
      */
     public void onDestroy() {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onDestroy();
-            }
+        cancelAsyncTasks();
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_DESTROY)) {
+            plugin.onDestroy();
         }
     }
 
@@ -305,12 +998,10 @@ public class PluginManager {
      * @return                  Object to stop propagation or null
      */
     public Object postMessage(String id, Object data) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                Object obj = plugin.onMessage(id, data);
-                if (obj != null) {
-                    return obj;
-                }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_MESSAGE)) {
+            Object obj = plugin.onMessage(id, data);
+            if (obj != null) {
+                return obj;
             }
         }
         return ctx.onMessage(id, data);
@@ -320,10 +1011,8 @@ public class PluginManager {
      * Called when the activity receives a new intent.
      */
     public void onNewIntent(Intent intent) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onNewIntent(intent);
-            }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_NEW_INTENT)) {
+            plugin.onNewIntent(intent);
         }
     }
 
@@ -339,14 +1028,9 @@ public class PluginManager {
      *                  false to block the resource.
      */
     public boolean shouldAllowRequest(String url) {
-        for (PluginEntry entry : this.entryMap.values()) {
-            CordovaPlugin plugin = pluginMap.get(entry.service);
-            if (plugin != null) {
-                Boolean result = plugin.shouldAllowRequest(url);
-                if (result != null) {
-                    return result;
-                }
-            }
+        Boolean result = getUrlDecision(PluginHooks.SHOULD_ALLOW_REQUEST, url);
+        if (result != null) {
+            return result;
         }
 
         // Default policy:
@@ -377,14 +1061,9 @@ public class PluginManager {
      *                  false to block the navigation.
      */
     public boolean shouldAllowNavigation(String url) {
-        for (PluginEntry entry : this.entryMap.values()) {
-            CordovaPlugin plugin = pluginMap.get(entry.service);
-            if (plugin != null) {
-                Boolean result = plugin.shouldAllowNavigation(url);
-                if (result != null) {
-                    return result;
-                }
-            }
+        Boolean result = getUrlDecision(PluginHooks.SHOULD_ALLOW_NAVIGATION, url);
+        if (result != null) {
+            return result;
         }
 
         // Default policy:
@@ -396,14 +1075,9 @@ public class PluginManager {
      * Called when the webview is requesting the exec() bridge be enabled.
      */
     public boolean shouldAllowBridgeAccess(String url) {
-        for (PluginEntry entry : this.entryMap.values()) {
-            CordovaPlugin plugin = pluginMap.get(entry.service);
-            if (plugin != null) {
-                Boolean result = plugin.shouldAllowBridgeAccess(url);
-                if (result != null) {
-                    return result;
-                }
-            }
+        Boolean result = getUrlDecision(PluginHooks.SHOULD_ALLOW_BRIDGE_ACCESS, url);
+        if (result != null) {
+            return result;
         }
 
         // Default policy:
@@ -423,13 +1097,10 @@ public class PluginManager {
      *                  false to block the intent.
      */
     public Boolean shouldOpenExternalUrl(String url) {
-        for (PluginEntry entry : this.entryMap.values()) {
-            CordovaPlugin plugin = pluginMap.get(entry.service);
-            if (plugin != null) {
-                Boolean result = plugin.shouldOpenExternalUrl(url);
-                if (result != null) {
-                    return result;
-                }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.SHOULD_OPEN_EXTERNAL_URL)) {
+            Boolean result = plugin.shouldOpenExternalUrl(url);
+            if (result != null) {
+                return result;
             }
         }
         // Default policy:
@@ -444,9 +1115,8 @@ public class PluginManager {
      * @return                  Return false to allow the URL to load, return true to prevent the URL from loading.
      */
     public boolean onOverrideUrlLoading(String url) {
-        for (PluginEntry entry : this.entryMap.values()) {
-            CordovaPlugin plugin = pluginMap.get(entry.service);
-            if (plugin != null && plugin.onOverrideUrlLoading(url)) {
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_OVERRIDE_URL_LOADING)) {
+            if (plugin.onOverrideUrlLoading(url)) {
                 return true;
             }
         }
@@ -454,23 +1124,22 @@ public class PluginManager {
     }
 
     /**
-     * Called when the app navigates or refreshes.
+     * Called when the app navigates or refreshes. Cancels the CallbackContexts
+     * of exec() calls made by the previous page (see CallbackContext.isCancelled()).
      */
     public void onReset() {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onReset();
-            }
+        pageGeneration++;
+        cancelAsyncTasks();
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_RESET)) {
+            plugin.onReset();
         }
     }
 
     Uri remapUri(Uri uri) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                Uri ret = plugin.remapUri(uri);
-                if (ret != null) {
-                    return ret;
-                }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.REMAP_URI)) {
+            Uri ret = plugin.remapUri(uri);
+            if (ret != null) {
+                return ret;
             }
         }
         return null;
@@ -480,6 +1149,13 @@ public class PluginManager {
      * Create a plugin based on class name.
      */
     private CordovaPlugin instantiatePlugin(String className) {
+        PluginFactory factory = getGeneratedPluginFactory();
+        if (factory != null && className != null) {
+            CordovaPlugin ret = factory.newPlugin(className);
+            if (ret != null) {
+                return ret;
+            }
+        }
         CordovaPlugin ret = null;
         try {
             Class<?> c = null;
@@ -490,22 +1166,36 @@ public class PluginManager {
                 ret = (CordovaPlugin) c.newInstance();
             }
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("Error adding plugin " + className + ".");
+            LOG.e(TAG, "Error adding plugin " + className + ".", e);
         }
         return ret;
     }
 
+    /**
+     * Returns the factory generated by the build from config.xml, or null if the app has none.
+     */
+    private static synchronized PluginFactory getGeneratedPluginFactory() {
+        if (!isGeneratedPluginFactoryLoaded) {
+            isGeneratedPluginFactoryLoaded = true;
+            try {
+                generatedPluginFactory = (PluginFactory) Class.forName(GENERATED_PLUGIN_FACTORY).newInstance();
+            } catch (ClassNotFoundException e) {
+                LOG.d(TAG, "No " + GENERATED_PLUGIN_FACTORY + ". Plugins will be created through reflection.");
+            } catch (Exception e) {
+                LOG.e(TAG, "Failed to create " + GENERATED_PLUGIN_FACTORY, e);
+            }
+        }
+        return generatedPluginFactory;
+    }
+
     /**
      * Called by the system when the device configuration changes while your activity is running.
      *
      * @param newConfig		The new device configuration
      */
     public void onConfigurationChanged(Configuration newConfig) {
-        for (CordovaPlugin plugin : this.pluginMap.values()) {
-            if (plugin != null) {
-                plugin.onConfigurationChanged(newConfig);
-            }
+        for (CordovaPlugin plugin : getSubscribers(PluginHooks.ON_CONFIGURATION_CHANGED)) {
+            plugin.onConfigurationChanged(newConfig);
         }
     }
 }
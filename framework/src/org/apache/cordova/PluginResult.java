@@ -29,9 +29,21 @@ public class PluginResult {
     private final int status;
     private final int messageType;
     private boolean keepCallback = false;
+    private boolean coalesce = false;
+    private int lane = LANE_INTERACTIVE;
     private String strMessage;
     private String encodedMessage;
+    private byte[] binaryMessage;
+    private Object jsonMessage;
+    // MESSAGE_TYPE_NUMBER values are kept unboxed, and integers are never formatted as a String.
+    private int numberKind;
+    private long longMessage;
+    private double doubleMessage;
+    private double[] doubleArrayMessage;
+    private int[] intArrayMessage;
     private List<PluginResult> multipartMessages;
+    // Set for the instances returned by getSharedResult(), which can't be modified.
+    private boolean shared;
 
     public PluginResult(Status status) {
         this(status, PluginResult.StatusMessages[status.ordinal()]);
@@ -46,25 +58,58 @@ public class PluginResult {
     public PluginResult(Status status, JSONArray message) {
         this.status = status.ordinal();
         this.messageType = MESSAGE_TYPE_JSON;
-        encodedMessage = message.toString();
+        // Not serialized here: NativeToJsMessageQueue writes it straight into its buffer when the
+        // result is sent, so that there is no intermediate String. Later changes to it are not sent.
+        this.jsonMessage = message;
     }
 
     public PluginResult(Status status, JSONObject message) {
         this.status = status.ordinal();
         this.messageType = MESSAGE_TYPE_JSON;
-        encodedMessage = message.toString();
+        this.jsonMessage = message;
     }
 
     public PluginResult(Status status, int i) {
+        this(status, (long) i);
+    }
+
+    public PluginResult(Status status, long l) {
         this.status = status.ordinal();
         this.messageType = MESSAGE_TYPE_NUMBER;
-        this.encodedMessage = ""+i;
+        this.numberKind = NUMBER_LONG;
+        this.longMessage = l;
     }
 
     public PluginResult(Status status, float f) {
         this.status = status.ordinal();
         this.messageType = MESSAGE_TYPE_NUMBER;
-        this.encodedMessage = ""+f;
+        this.numberKind = NUMBER_FLOAT;
+        this.doubleMessage = f;
+    }
+
+    public PluginResult(Status status, double d) {
+        this.status = status.ordinal();
+        this.messageType = MESSAGE_TYPE_NUMBER;
+        this.numberKind = NUMBER_DOUBLE;
+        this.doubleMessage = d;
+    }
+
+    /**
+     * Sent to JS as a Float64Array.
+     */
+    public PluginResult(Status status, double[] data) {
+        this.status = status.ordinal();
+        this.messageType = MESSAGE_TYPE_DOUBLE_ARRAY;
+        this.doubleArrayMessage = data;
+    }
+
+    /**
+     * Sent to JS as an Int32Array.
+     */
+    public PluginResult(Status status, int[] data) {
+        this.status = status.ordinal();
+        this.messageType = MESSAGE_TYPE_INT_ARRAY;
+        this.intArrayMessage = data;
     }
 
     public PluginResult(Status status, boolean b) {
@@ -80,7 +125,8 @@ public class PluginResult {
     public PluginResult(Status status, byte[] data, boolean binaryString) {
         this.status = status.ordinal();
         this.messageType = binaryString ? MESSAGE_TYPE_BINARYSTRING : MESSAGE_TYPE_ARRAYBUFFER;
-        this.encodedMessage = Base64.encodeToString(data, Base64.NO_WRAP);
+        // Base64 encoded lazily by getMessage(), since the bytes may be sent without it.
+        this.binaryMessage = data;
     }
     
     // The keepCallback and status of multipartMessages are ignored.
@@ -90,10 +136,99 @@ public class PluginResult {
         this.multipartMessages = multipartMessages;
     }
 
+    /**
+     * Returns a result equivalent to new PluginResult(status).
+     */
+    public static PluginResult forStatus(Status status) {
+        return new PluginResult(status);
+    }
+
+    /**
+     * Returns a result equivalent to new PluginResult(status, message).
+     */
+    public static PluginResult forStatus(Status status, String message) {
+        return new PluginResult(status, message);
+    }
+
+    /**
+     * Returns a shared result equivalent to new PluginResult(status), for results that
+     * the framework sends on behalf of plugins (e.g. CallbackContext.success()). Since
+     * shared results can't be modified, they are always final (keepCallback is false),
+     * and must not be handed to plugins.
+     */
+    static PluginResult getSharedResult(Status status) {
+        return STATUS_RESULTS[status.ordinal()];
+    }
+
+    /**
+     * Returns a result equivalent to new PluginResult(status, message), which is
+     * shared (see getSharedResult()) when the message is empty.
+     */
+    static PluginResult getSharedResult(Status status, String message) {
+        if (message != null && message.length() == 0) {
+            return EMPTY_STRING_RESULTS[status.ordinal()];
+        }
+        return new PluginResult(status, message);
+    }
+
+    private static PluginResult[] createSharedResults(boolean emptyString) {
+        Status[] statuses = Status.values();
+        PluginResult[] ret = new PluginResult[statuses.length];
+        for (int i = 0; i < statuses.length; ++i) {
+            ret[i] = emptyString ? new PluginResult(statuses[i], "") : new PluginResult(statuses[i]);
+            // Encoded up front, since it would otherwise be written by any thread that reads it.
+            ret[i].getMessage();
+            ret[i].shared = true;
+        }
+        return ret;
+    }
+
+    boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Returns a copy of this shared result that can be modified.
+     */
+    PluginResult copyShared() {
+        return new PluginResult(Status.values()[status], strMessage);
+    }
+
+    private void checkNotShared(boolean isChange) {
+        if (shared && isChange) {
+            throw new UnsupportedOperationException("Shared PluginResults can't be modified");
+        }
+    }
+
     public void setKeepCallback(boolean b) {
+        checkNotShared(b != keepCallback);
         this.keepCallback = b;
     }
 
+    /**
+     * When set on a result that also has keepCallback set, the result replaces
+     * any earlier coalescing result for the same callback that has not yet been
+     * sent to JS, rather than being queued behind it. Useful for progress events,
+     * where only the most recent value matters. Results without keepCallback are
+     * never coalesced, so final results are always delivered in order.
+     */
+    public void setCoalesce(boolean b) {
+        checkNotShared(b != coalesce);
+        this.coalesce = b;
+    }
+
+    /**
+     * Sets which lane of the native->JS message queue this result is sent in.
+     * LANE_BULK results are sent only after any pending LANE_INTERACTIVE results,
+     * so that large results (e.g. query results) do not delay events that the
+     * UI is waiting on. Results for the same callback are always sent in order.
+     * Defaults to LANE_INTERACTIVE.
+     */
+    public void setLane(int lane) {
+        checkNotShared(lane != this.lane);
+        this.lane = lane;
+    }
+
     public int getStatus() {
         return status;
     }
@@ -104,11 +239,130 @@ public class PluginResult {
 
     public String getMessage() {
         if (encodedMessage == null) {
-            encodedMessage = JSONObject.quote(strMessage);
+            if (binaryMessage != null) {
+                encodedMessage = Base64.encodeToString(binaryMessage, Base64.NO_WRAP);
+            } else if (jsonMessage != null) {
+                encodedMessage = jsonMessage.toString();
+            } else if (messageType == MESSAGE_TYPE_NUMBER) {
+                encodedMessage = numberKind == NUMBER_LONG ? String.valueOf(longMessage)
+                        : numberKind == NUMBER_FLOAT ? String.valueOf((float) doubleMessage)
+                        : String.valueOf(doubleMessage);
+            } else if (messageType == MESSAGE_TYPE_DOUBLE_ARRAY || messageType == MESSAGE_TYPE_INT_ARRAY) {
+                StringBuilder sb = new StringBuilder(getEncodedArrayLength());
+                appendEncodedArray(sb);
+                encodedMessage = sb.toString();
+            } else {
+                encodedMessage = JSONObject.quote(strMessage);
+            }
         }
         return encodedMessage;
     }
 
+    /**
+     * If messageType == MESSAGE_TYPE_JSON and the message has not yet been serialized
+     * by getMessage(), then returns the JSONObject or JSONArray. Otherwise, returns null.
+     */
+    Object getJsonMessage() {
+        return encodedMessage == null ? jsonMessage : null;
+    }
+
+    /**
+     * If messageType == MESSAGE_TYPE_DOUBLE_ARRAY, then returns the values. Otherwise, returns null.
+     */
+    public double[] getDoubleArrayMessage() {
+        return doubleArrayMessage;
+    }
+
+    /**
+     * If messageType == MESSAGE_TYPE_INT_ARRAY, then returns the values. Otherwise, returns null.
+     */
+    public int[] getIntArrayMessage() {
+        return intArrayMessage;
+    }
+
+    /**
+     * Returns the length of getMessage() for a MESSAGE_TYPE_NUMBER result.
+     */
+    int getEncodedNumberLength() {
+        if (numberKind != NUMBER_LONG || encodedMessage != null) {
+            return getMessage().length();
+        }
+        long value = longMessage;
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        int ret = 1;
+        if (value < 0) {
+            value = -value;
+            ret++;
+        }
+        while (value >= 10) {
+            value /= 10;
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Appends getMessage() for a MESSAGE_TYPE_NUMBER result. Integers are written as
+     * digits without first being formatted as a String.
+     */
+    void appendEncodedNumber(StringBuilder sb) {
+        if (numberKind == NUMBER_LONG) {
+            sb.append(longMessage);
+        } else {
+            sb.append(getMessage());
+        }
+    }
+
+    /**
+     * Returns the value of a MESSAGE_TYPE_NUMBER result, as JS would parse it from getMessage().
+     */
+    double getNumberValue() {
+        if (numberKind == NUMBER_FLOAT) {
+            // So that 0.1f is 0.1, rather than 0.10000000149011612.
+            return Double.parseDouble(getMessage());
+        }
+        return numberKind == NUMBER_LONG ? longMessage : doubleMessage;
+    }
+
+    /**
+     * Returns the length of getMessage() for a MESSAGE_TYPE_DOUBLE_ARRAY or MESSAGE_TYPE_INT_ARRAY result.
+     */
+    int getEncodedArrayLength() {
+        int numBytes = doubleArrayMessage != null ? doubleArrayMessage.length * 8 : intArrayMessage.length * 4;
+        return (numBytes + 2) / 3 * 4;
+    }
+
+    /**
+     * Appends getMessage() for a MESSAGE_TYPE_DOUBLE_ARRAY or MESSAGE_TYPE_INT_ARRAY
+     * result: the values as little-endian bytes (the byte order of typed arrays on
+     * Android devices), base64 encoded as by Base64.NO_WRAP. The bytes are encoded as
+     * they are read from the array, so that there is no intermediate byte[].
+     */
+    void appendEncodedArray(StringBuilder sb) {
+        int width = doubleArrayMessage != null ? 8 : 4;
+        int numBytes = doubleArrayMessage != null ? doubleArrayMessage.length * 8 : intArrayMessage.length * 4;
+        for (int i = 0; i < numBytes; i += 3) {
+            int bits = getArrayByte(i, width) << 16;
+            if (i + 1 < numBytes) {
+                bits |= getArrayByte(i + 1, width) << 8;
+            }
+            if (i + 2 < numBytes) {
+                bits |= getArrayByte(i + 2, width);
+            }
+            sb.append(BASE64_CHARS[bits >>> 18])
+              .append(BASE64_CHARS[(bits >>> 12) & 63])
+              .append(i + 1 < numBytes ? BASE64_CHARS[(bits >>> 6) & 63] : '=')
+              .append(i + 2 < numBytes ? BASE64_CHARS[bits & 63] : '=');
+        }
+    }
+
+    private int getArrayByte(int byteIndex, int width) {
+        long value = width == 8 ? Double.doubleToRawLongBits(doubleArrayMessage[byteIndex >> 3]) : intArrayMessage[byteIndex >> 2];
+        return (int) (value >>> ((byteIndex & (width - 1)) * 8)) & 0xFF;
+    }
+
     public int getMultipartMessagesSize() {
         return multipartMessages.size();
     }
@@ -125,10 +379,26 @@ public class PluginResult {
         return strMessage;
     }
 
+    /**
+     * If messageType == MESSAGE_TYPE_ARRAYBUFFER or MESSAGE_TYPE_BINARYSTRING,
+     * then returns the raw bytes. Otherwise, returns null.
+     */
+    public byte[] getBinaryMessage() {
+        return binaryMessage;
+    }
+
     public boolean getKeepCallback() {
         return this.keepCallback;
     }
 
+    public boolean getCoalesce() {
+        return this.coalesce;
+    }
+
+    public int getLane() {
+        return this.lane;
+    }
+
     @Deprecated // Use sendPluginResult instead of sendJavascript.
     public String getJSONString() {
         return "{\"status\":" + this.status + ",\"message\":" + this.getMessage() + ",\"keepCallback\":" + this.keepCallback + "}";
@@ -169,6 +439,17 @@ public class PluginResult {
     // This is required to work around a bug in the platform :(.
     public static final int MESSAGE_TYPE_BINARYSTRING = 7;
     public static final int MESSAGE_TYPE_MULTIPART = 8;
+    public static final int MESSAGE_TYPE_DOUBLE_ARRAY = 9;
+    public static final int MESSAGE_TYPE_INT_ARRAY = 10;
+
+    private static final int NUMBER_LONG = 0;
+    private static final int NUMBER_FLOAT = 1;
+    private static final int NUMBER_DOUBLE = 2;
+
+    private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    public static final int LANE_INTERACTIVE = 0;
+    public static final int LANE_BULK = 1;
 
     public static String[] StatusMessages = new String[] {
         "No result",
@@ -183,6 +464,10 @@ public class PluginResult {
         "Error"
     };
 
+    // Created after StatusMessages, which they use.
+    private static final PluginResult[] STATUS_RESULTS = createSharedResults(false);
+    private static final PluginResult[] EMPTY_STRING_RESULTS = createSharedResults(true);
+
     public enum Status {
         NO_RESULT,
         OK,
@@ -41,6 +41,15 @@ class SystemExposedJsApi implements ExposedJsApi {
         return bridge.jsExec(bridgeSecret, service, action, callbackId, arguments);
     }
 
+    /**
+     * Not part of ExposedJsApi, so that other engines need not implement it.
+     * cordova.js only batches exec() calls when it is present.
+     */
+    @JavascriptInterface
+    public String execBatch(int bridgeSecret, String batch) throws JSONException, IllegalAccessException {
+        return bridge.jsExecBatch(bridgeSecret, batch);
+    }
+
     @JavascriptInterface
     public void setNativeToJsBridgeMode(int bridgeSecret, int value) throws IllegalAccessException {
         bridge.jsSetNativeToJsBridgeMode(bridgeSecret, value);
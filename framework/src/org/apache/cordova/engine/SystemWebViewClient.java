@@ -29,6 +29,7 @@ import android.os.Build;
 import android.webkit.ClientCertRequest;
 import android.webkit.HttpAuthHandler;
 import android.webkit.SslErrorHandler;
+import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -38,11 +39,15 @@ import org.apache.cordova.CordovaClientCertRequest;
 import org.apache.cordova.CordovaHttpAuthHandler;
 import org.apache.cordova.CordovaResourceApi;
 import org.apache.cordova.LOG;
+import org.apache.cordova.NativeToJsMessageQueue;
 import org.apache.cordova.PluginManager;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Map;
 
 
 /**
@@ -316,6 +321,16 @@ public class SystemWebViewClient extends WebViewClient {
         this.authenticationTokens.clear();
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        String url = request.getUrl().toString();
+        if (url.startsWith(NativeToJsMessageQueue.BINARY_PAYLOAD_URL_PREFIX)) {
+            return getBinaryPayloadResponse(url, request.getRequestHeaders().get("Origin"));
+        }
+        return shouldInterceptRequest(view, url);
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Override
     public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
@@ -348,6 +363,35 @@ public class SystemWebViewClient extends WebViewClient {
         }
     }
 
+    /**
+     * Serves an ArrayBuffer plugin result that is being sent without base64.
+     * See NativeToJsMessageQueue.setBinaryPayloadsEnabled().
+     *
+     * Requests from file: pages (which are allowed universal access) carry no
+     * origin, or "null". Others are cross-origin requests, and are served only
+     * to origins that have bridge access, which the response names so that
+     * no other frame can read it.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private WebResourceResponse getBinaryPayloadResponse(String url, String origin) {
+        Map<String, String> headers;
+        if (origin == null || "null".equals(origin) || origin.startsWith("file:")) {
+            headers = Collections.emptyMap();
+        } else if (parentEngine.pluginManager.shouldAllowBridgeAccess(origin + "/")) {
+            headers = Collections.singletonMap("Access-Control-Allow-Origin", origin);
+        } else {
+            LOG.w(TAG, "Binary payload request blocked for origin: " + origin);
+            // Results in a 404, and leaves the payload for the page it was meant for.
+            return new WebResourceResponse("text/plain", "UTF-8", null);
+        }
+        byte[] data = parentEngine.nativeToJsMessageQueue.takeBinaryPayload(url);
+        if (data == null) {
+            // Results in a 404.
+            return new WebResourceResponse("text/plain", "UTF-8", null);
+        }
+        return new WebResourceResponse("application/octet-stream", null, 200, "OK", headers, new ByteArrayInputStream(data));
+    }
+
     private static boolean needsKitKatContentUrlFix(Uri uri) {
         return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT && "content".equals(uri.getScheme());
     }
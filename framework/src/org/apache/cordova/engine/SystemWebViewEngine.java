@@ -116,6 +116,10 @@ public class SystemWebViewEngine implements CordovaWebViewEngine {
                 SystemWebViewEngine.this.cordova.getActivity().runOnUiThread(r);
             }
         }));
+        // Binary payloads need WebResourceResponse headers, which were added in Lollipop.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            nativeToJsMessageQueue.setBinaryPayloadsEnabled(preferences.getBoolean("NativeToJsBinaryPayloads", false));
+        }
         bridge = new CordovaBridge(pluginManager, nativeToJsMessageQueue);
         exposeJsInterface(webView, bridge);
     }
@@ -26,6 +26,15 @@ import android.test.ActivityInstrumentationTestCase2;
 import android.widget.FrameLayout;
 
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.PluginEntry;
+import org.apache.cordova.PluginManager;
+import org.apache.cordova.PluginResult;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
 
 public class BaseCordovaIntegrationTest extends ActivityInstrumentationTestCase2<MainTestActivity> {
     protected MainTestActivity testActivity;
@@ -48,5 +57,22 @@ public class BaseCordovaIntegrationTest extends ActivityInstrumentationTestCase2
         containerView = (FrameLayout) testActivity.findViewById(android.R.id.content);
         cordovaWebView = testActivity.getCordovaWebView();
     }
-}
 
+    /**
+     * Creates a PluginManager for the given plugins that sends their results to
+     * queue rather than to the webview's own queue, so that a CordovaBridge
+     * created with the same queue returns them.
+     */
+    protected PluginManager createPluginManager(final NativeToJsMessageQueue queue, PluginEntry... entries) {
+        CordovaWebView webView = (CordovaWebView) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { CordovaWebView.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("sendPluginResult")) {
+                    queue.addPluginResult((PluginResult) args[0], (String) args[1]);
+                    return null;
+                }
+                return method.invoke(cordovaWebView, args);
+            }
+        });
+        return new PluginManager(webView, null, Arrays.asList(entries));
+    }
+}
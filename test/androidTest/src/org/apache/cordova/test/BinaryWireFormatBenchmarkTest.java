@@ -0,0 +1,195 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+
+package org.apache.cordova.test;
+
+import android.util.Base64;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compares the text and binary Native->JS wire formats on a batch that mixes
+ * progress strings, numbers, double[] results and JSON. Encoding is timed
+ * through NativeToJsMessageQueue. Decoding is timed with Java ports of the
+ * cordova.js decoders, so it shows the relative work of each format rather than
+ * the time taken in the WebView. Results are logged under the "WireFormatBenchmark" tag.
+ */
+public class BinaryWireFormatBenchmarkTest extends TestCase {
+    private static final String TAG = "WireFormatBenchmark";
+    private static final int MESSAGES_PER_BATCH = 200;
+    private static final int ITERATIONS = 200;
+
+    private NativeToJsMessageQueue queue;
+    private PluginResult[] results;
+    private int payloadSize;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        queue = new NativeToJsMessageQueue();
+        queue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
+        queue.setBridgeMode(0);
+        queue.setBinaryPayloadsEnabled(true);
+        queue.setBinaryPayloadsConfirmed(true);
+        queue.setMinBinaryBatchSize(0);
+
+        results = new PluginResult[MESSAGES_PER_BATCH];
+        double[] samples = new double[64];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = Math.sin(i);
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("name", "sensor");
+        obj.put("accuracy", 0.25);
+        obj.put("timestamp", 1234567890123L);
+        for (int i = 0; i < MESSAGES_PER_BATCH; ++i) {
+            switch (i % 8) {
+                case 0: results[i] = new PluginResult(PluginResult.Status.OK, samples); break;
+                case 1: results[i] = new PluginResult(PluginResult.Status.OK, obj); break;
+                case 2: case 3: results[i] = new PluginResult(PluginResult.Status.OK, i); break;
+                default: results[i] = new PluginResult(PluginResult.Status.OK, "progress " + i);
+            }
+            results[i].setKeepCallback(true);
+        }
+    }
+
+    public void testEncodeDecodeThroughput() throws JSONException {
+        // Warm up both so that neither run pays for class loading / JIT.
+        runBenchmark("warmup", false);
+        runBenchmark("warmup", true);
+
+        runBenchmark("Text", false);
+        runBenchmark("Binary", true);
+    }
+
+    private void runBenchmark(String name, boolean binary) throws JSONException {
+        queue.setBinaryWireFormatEnabled(binary);
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            long start = System.nanoTime();
+            for (int j = 0; j < MESSAGES_PER_BATCH; ++j) {
+                // Results for a handful of callbacks, as from a few listeners.
+                queue.addPluginResult(results[j], "Sensor" + (j & 3));
+            }
+            String payload = queue.popAndEncode(false);
+            byte[] data = null;
+            if (binary) {
+                int urlStart = payload.indexOf('W') + 1;
+                data = queue.takeBinaryPayload(payload.substring(urlStart, payload.indexOf(' ', urlStart)));
+            }
+            long encoded = System.nanoTime();
+            int count = binary ? decodeBinary(data) : decodeText(payload);
+            decodeNanos += System.nanoTime() - encoded;
+            encodeNanos += encoded - start;
+            assertEquals(MESSAGES_PER_BATCH, count);
+            payloadSize = binary ? data.length : payload.length() * 2;
+        }
+        long total = (long) ITERATIONS * MESSAGES_PER_BATCH;
+        Log.i(TAG, name + ": encode " + (total * 1000000000L / encodeNanos) + " msgs/s, decode "
+                + (total * 1000000000L / decodeNanos) + " msgs/s, " + payloadSize + " bytes per batch");
+    }
+
+    /** Follows processMessages() and buildPayload() in cordova.js. */
+    private static int decodeText(String payload) throws JSONException {
+        int count = 0;
+        int i = 0;
+        while (i < payload.length() && payload.charAt(i) != '*') {
+            int spaceIdx = payload.indexOf(' ', i);
+            int len = Integer.parseInt(payload.substring(i, spaceIdx));
+            String message = payload.substring(spaceIdx + 1, spaceIdx + 1 + len);
+            i = spaceIdx + 1 + len;
+            int statusEnd = message.indexOf(' ', 2);
+            int callbackIdEnd = message.indexOf(' ', statusEnd + 1);
+            Integer.parseInt(message.substring(2, statusEnd));
+            message.substring(statusEnd + 1, callbackIdEnd);
+            String value = message.substring(callbackIdEnd + 1);
+            switch (value.charAt(0)) {
+                case 's':
+                    value.substring(1);
+                    break;
+                case 'n':
+                    Double.parseDouble(value.substring(1));
+                    break;
+                case 'D':
+                    byte[] bytes = Base64.decode(value.substring(1), Base64.DEFAULT);
+                    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(new double[bytes.length / 8]);
+                    break;
+                default:
+                    new JSONTokener(value).nextValue();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /** Follows decodeBinaryBatch() in cordova.js, for the tags that the batch uses. */
+    private static int decodeBinary(byte[] data) throws JSONException {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buf.get();
+        int count = buf.getInt();
+        buf.position(buf.getInt());
+        String[] strings = new String[buf.getInt()];
+        for (int i = 0; i < strings.length; ++i) {
+            strings[i] = readString(buf);
+        }
+        buf.position(9);
+        for (int i = 0; i < count; ++i) {
+            buf.get();
+            buf.get();
+            buf.get();
+            String callbackId = strings[buf.getInt()];
+            switch (buf.get()) {
+                case 3: // TAG_INT32
+                    buf.getInt();
+                    break;
+                case 5: // TAG_STRING
+                    readString(buf);
+                    break;
+                case 6: // TAG_JSON
+                    new JSONTokener(readString(buf)).nextValue();
+                    break;
+                case 9: // TAG_FLOAT64_ARRAY
+                    double[] values = new double[buf.getInt()];
+                    buf.asDoubleBuffer().get(values);
+                    buf.position(buf.position() + values.length * 8);
+                    break;
+                default:
+                    fail("Unexpected tag for " + callbackId);
+            }
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        char[] chars = new char[buf.getInt()];
+        buf.asCharBuffer().get(chars);
+        buf.position(buf.position() + chars.length * 2);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+
+package org.apache.cordova.test;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
+import org.apache.cordova.CordovaBridge;
+import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.ExecThread;
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.PluginAction;
+import org.apache.cordova.PluginEntry;
+import org.apache.cordova.PluginManager;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CordovaBridgeTest extends BaseCordovaIntegrationTest {
+    private static final String ORIGIN = "file:///android_asset/www/index.html";
+
+    private CordovaBridge bridge;
+    private int bridgeSecret;
+    private PluginManager pluginManager;
+    private NativeToJsMessageQueue queue;
+    private EchoPlugin plugin;
+    private AnnotatedPlugin annotatedPlugin;
+    private AsyncPlugin asyncPlugin;
+
+    /** Echoes its first arg back, prefixed with the action. */
+    public static class EchoPlugin extends CordovaPlugin {
+        String calls = "";
+
+        @Override
+        public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+            calls += action + ",";
+            callbackContext.success(action + ":" + args.getString(0));
+            return true;
+        }
+    }
+
+    /** Handles its actions with @PluginAction methods. */
+    public static class AnnotatedPlugin extends CordovaPlugin {
+        @PluginAction
+        public String concat(String a, int b, boolean c) {
+            return a + b + c;
+        }
+
+        @PluginAction("getKey")
+        public void getKeyWithCallback(JSONObject obj, CallbackContext callbackContext) throws JSONException {
+            callbackContext.success(obj.getString("key"));
+        }
+
+        @PluginAction
+        public String views(CordovaArgs args) throws JSONException {
+            return args.getCharSequence(1) + "|" + args.getCharSequence(2) + "|" + args.getInt(3);
+        }
+
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile Thread backgroundThread;
+
+        @PluginAction(value = "background", thread = ExecThread.BACKGROUND)
+        public String background() throws InterruptedException {
+            release.await();
+            backgroundThread = Thread.currentThread();
+            return "done";
+        }
+    }
+
+    /** Completes its callbacks from background tasks. */
+    public static class AsyncPlugin extends CordovaPlugin {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        @PluginAction
+        public void value(CallbackContext callbackContext) {
+            callbackContext.submit(new Callable<String>() {
+                public String call() {
+                    return "done";
+                }
+            });
+        }
+
+        @PluginAction
+        public void block(CallbackContext callbackContext) {
+            callbackContext.submit(new Callable<String>() {
+                public String call() {
+                    started.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                    return "late";
+                }
+            });
+        }
+
+        volatile CallbackContext pending;
+
+        @PluginAction
+        public void later(CallbackContext callbackContext) {
+            pending = callbackContext;
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        setUpWithStartUrl(null);
+        plugin = new EchoPlugin();
+        annotatedPlugin = new AnnotatedPlugin();
+        asyncPlugin = new AsyncPlugin();
+        queue = new NativeToJsMessageQueue();
+        queue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
+        pluginManager = createPluginManager(queue, new PluginEntry("Echo", plugin), new PluginEntry("Annotated", annotatedPlugin),
+                new PluginEntry("Async", asyncPlugin));
+        bridge = new CordovaBridge(pluginManager, queue);
+        bridgeSecret = Integer.parseInt(bridge.promptOnJsPrompt(ORIGIN, "", "gap_init:0"));
+    }
+
+    public void testPromptExec() {
+        String header = "gap:[" + bridgeSecret + ",\"Echo\",\"a\",\"Echo1\"]";
+        assertEquals("14 S01 Echo1 sa:x", bridge.promptOnJsPrompt(ORIGIN, "[\"x\"]", header));
+        // Escapes in the header are handled by org.json.
+        header = "gap:[" + bridgeSecret + ",\"Echo\",\"\\u0062\",\"Echo2\"]";
+        assertEquals("14 S01 Echo2 sb:y", bridge.promptOnJsPrompt(ORIGIN, "[\"y\"]", header));
+        assertEquals("a,b,", plugin.calls);
+
+        // Malformed headers are ignored.
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "[]", "gap:"));
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "[]", "gap:["));
+        assertEquals("a,b,", plugin.calls);
+
+        // Malformed args fail the call before the action runs.
+        header = "gap:[" + bridgeSecret + ",\"Echo\",\"c\",\"Echo3\"]";
+        assertEquals("21 F08 Echo3 sJSON error", bridge.promptOnJsPrompt(ORIGIN, "[\"x\"", header));
+        assertEquals("a,b,", plugin.calls);
+    }
+
+    public void testExecBatch() throws Exception {
+        String batch = "4 Echo1 a5 Echo15 [\"x\"]"
+                + "4 Echo1 b5 Echo27 [\"y z\"]";
+        assertEquals("14 S01 Echo1 sa:x16 S01 Echo2 sb:y z", bridge.jsExecBatch(bridgeSecret, batch));
+        assertEquals("a,b,", plugin.calls);
+
+        assertEquals("18 S01 Echo3 sc:batch", bridge.promptOnJsPrompt(ORIGIN, "4 Echo1 c5 Echo39 [\"batch\"]", "gap_batch:" + bridgeSecret));
+        assertEquals("@Null arguments.", bridge.jsExecBatch(bridgeSecret, null));
+
+        // Nothing in a malformed batch is run. The calls before the malformed one are failed.
+        plugin.calls = "";
+        String malformed = "4 Echo1 a5 Echo45 [\"x\"]" + "4 Echo1 b99 Echo5";
+        assertEquals("33 F09 Echo4 sMalformed exec() batch", bridge.jsExecBatch(bridgeSecret, malformed));
+        assertNull(bridge.jsExecBatch(bridgeSecret, "x Echo"));
+        assertNull(bridge.jsExecBatch(bridgeSecret, "-1 Echo"));
+        assertEquals("", plugin.calls);
+    }
+
+    public void testBinaryPayloadConfirmation() {
+        queue.setBinaryPayloadsEnabled(true);
+        assertFalse(queue.getBinaryPayloadsConfirmed());
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "", "gap_binary:" + bridgeSecret));
+        assertTrue(queue.getBinaryPayloadsConfirmed());
+        // Sent when a fetch fails, after which text is sent instead.
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "failed", "gap_binary:" + bridgeSecret));
+        assertFalse(queue.getBinaryPayloadsConfirmed());
+    }
+
+    public void testBinaryWireFormatNegotiation() {
+        assertFalse(queue.getBinaryWireFormatEnabled());
+        bridge.promptOnJsPrompt(ORIGIN, "binary", "gap_init:0");
+        assertTrue(queue.getBinaryWireFormatEnabled());
+        bridge.promptOnJsPrompt(ORIGIN, "", "gap_init:0");
+        assertFalse(queue.getBinaryWireFormatEnabled());
+    }
+
+    public void testExecLatencies() throws Exception {
+        String header = "gap:[" + bridgeSecret + ",\"Echo\",\"a\",\"Echo1\"]";
+        bridge.promptOnJsPrompt(ORIGIN, "[\"x\"]", header);
+        bridge.promptOnJsPrompt(ORIGIN, "[\"y\"]", header);
+        assertEquals(2, pluginManager.getExecLatency("Echo", "a", PluginManager.LATENCY_EXECUTE).getCount());
+        assertEquals(2, pluginManager.getExecLatency("Echo", "a", PluginManager.LATENCY_RESULT).getCount());
+        assertEquals(2, pluginManager.getExecLatency("Echo", "a", PluginManager.LATENCY_DELIVERY).getCount());
+        assertNull(pluginManager.getExecLatency("Echo", "b", PluginManager.LATENCY_EXECUTE));
+        assertEquals(2, pluginManager.getExecLatencies().getJSONObject("Echo").getJSONObject("a").getJSONObject("execute").getLong("count"));
+
+        pluginManager.resetExecLatencies();
+        assertNull(pluginManager.getExecLatency("Echo", "a", PluginManager.LATENCY_EXECUTE));
+    }
+
+    public void testPluginActions() {
+        String header = "gap:[" + bridgeSecret + ",\"Annotated\",\"concat\",\"Annotated1\"]";
+        assertEquals("22 S01 Annotated1 sx1true", bridge.promptOnJsPrompt(ORIGIN, "[\"x\",1,true]", header));
+        // A missing primitive arg is a JSON_EXCEPTION.
+        assertEquals("26 F08 Annotated1 sJSON error", bridge.promptOnJsPrompt(ORIGIN, "[\"x\"]", header));
+
+        header = "gap:[" + bridgeSecret + ",\"Annotated\",\"getKey\",\"Annotated2\"]";
+        assertEquals("17 S01 Annotated2 sv", bridge.promptOnJsPrompt(ORIGIN, "[{\"key\":\"v\"}]", header));
+
+        // Only the args that are used are decoded.
+        header = "gap:[" + bridgeSecret + ",\"Annotated\",\"views\",\"Annotated5\"]";
+        assertEquals("25 S01 Annotated5 sa b|e\"s|7", bridge.promptOnJsPrompt(ORIGIN, "[{\"x\":[\"]\"]}, \"a b\",\"e\\\"s\",7]", header));
+
+        header = "gap:[" + bridgeSecret + ",\"Annotated\",\"unknown\",\"Annotated3\"]";
+        assertEquals("30 F07 Annotated3 sInvalid action", bridge.promptOnJsPrompt(ORIGIN, "[]", header));
+    }
+
+    public void testCoreAndroidResults() {
+        // Results go to this test's queue rather than to the webview's.
+        PluginManager corePluginManager = createPluginManager(queue, new PluginEntry("CoreAndroid", cordovaWebView.getPluginManager().getPlugin("CoreAndroid")));
+        CordovaBridge coreBridge = new CordovaBridge(corePluginManager, queue);
+        int coreSecret = Integer.parseInt(coreBridge.promptOnJsPrompt(ORIGIN, "", "gap_init:0"));
+
+        // Actions without a value send an empty string.
+        String header = "gap:[" + coreSecret + ",\"CoreAndroid\",\"cancelLoadUrl\",\"CoreAndroid1\"]";
+        assertEquals("18 S01 CoreAndroid1 s", coreBridge.promptOnJsPrompt(ORIGIN, "[]", header));
+        // As do unknown actions.
+        header = "gap:[" + coreSecret + ",\"CoreAndroid\",\"unknown\",\"CoreAndroid2\"]";
+        assertEquals("18 S01 CoreAndroid2 s", coreBridge.promptOnJsPrompt(ORIGIN, "[]", header));
+        // A missing url is a JSON_EXCEPTION.
+        header = "gap:[" + coreSecret + ",\"CoreAndroid\",\"loadUrl\",\"CoreAndroid3\"]";
+        assertEquals("28 F08 CoreAndroid3 sJSON error", coreBridge.promptOnJsPrompt(ORIGIN, "[]", header));
+    }
+
+    public void testBackgroundExecThread() throws Exception {
+        String header = "gap:[" + bridgeSecret + ",\"Annotated\",\"background\",\"Annotated4\"]";
+        // Returns without waiting for the action.
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "[]", header));
+        annotatedPlugin.release.countDown();
+
+        assertEquals("20 S01 Annotated4 sdone", pollForMessages());
+        assertNotSame(Thread.currentThread(), annotatedPlugin.backgroundThread);
+    }
+
+    public void testAsyncResult() throws Exception {
+        String header = "gap:[" + bridgeSecret + ",\"Async\",\"value\",\"Async1\"]";
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "[]", header));
+        assertEquals("16 S01 Async1 sdone", pollForMessages());
+    }
+
+    public void testAsyncTaskCancelledOnReset() throws Exception {
+        String header = "gap:[" + bridgeSecret + ",\"Async\",\"block\",\"Async2\"]";
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "[]", header));
+        assertTrue(asyncPlugin.started.await(5, TimeUnit.SECONDS));
+        pluginManager.onReset();
+        assertTrue(asyncPlugin.interrupted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "", "gap_poll:" + bridgeSecret));
+    }
+
+    public void testResultsCancelledOnReset() throws Exception {
+        String header = "gap:[" + bridgeSecret + ",\"Async\",\"later\",\"Async3\"]";
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "[]", header));
+        CallbackContext callbackContext = asyncPlugin.pending;
+        assertFalse(callbackContext.isCancelled());
+
+        pluginManager.onReset();
+        assertTrue(callbackContext.isCancelled());
+        callbackContext.success("stale");
+        assertTrue(callbackContext.isFinished());
+        assertEquals("", bridge.promptOnJsPrompt(ORIGIN, "", "gap_poll:" + bridgeSecret));
+    }
+
+    /** Polls for up to 5 seconds for messages from background threads. */
+    private String pollForMessages() throws InterruptedException {
+        String poll = "gap_poll:" + bridgeSecret;
+        String result = bridge.promptOnJsPrompt(ORIGIN, "", poll);
+        for (int i = 0; i < 50 && result.length() == 0; ++i) {
+            Thread.sleep(100);
+            result = bridge.promptOnJsPrompt(ORIGIN, "", poll);
+        }
+        return result;
+    }
+}
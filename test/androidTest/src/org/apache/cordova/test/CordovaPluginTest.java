@@ -23,15 +23,67 @@ package org.apache.cordova.test;
 
 
 import android.app.Activity;
+import android.os.Looper;
 import android.test.ActivityInstrumentationTestCase2;
 
+import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.ExecThread;
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.PluginEntry;
+import org.apache.cordova.PluginManager;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CordovaPluginTest extends BaseCordovaIntegrationTest {
 
+    public static class InitThreadPlugin extends CordovaPlugin {
+        volatile Thread initThread;
+
+        @Override
+        protected void pluginInitialize() {
+            initThread = Thread.currentThread();
+        }
+    }
+
+    public static class SlowInitPlugin extends CordovaPlugin {
+        static final AtomicInteger instances = new AtomicInteger();
+
+        @Override
+        protected void pluginInitialize() {
+            instances.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class NavigationPlugin extends CordovaPlugin {
+        @Override
+        public Boolean shouldAllowNavigation(String url) {
+            return url.startsWith("https://allowed/") ? Boolean.TRUE : null;
+        }
+    }
+
+    public static class CachedNavigationPlugin extends NavigationPlugin {
+        int calls;
+
+        @Override
+        public Boolean shouldAllowNavigation(String url) {
+            calls++;
+            return super.shouldAllowNavigation(url);
+        }
+
+        @Override
+        public boolean isUrlDecisionCacheable() {
+            return true;
+        }
+    }
+
     protected void setUp() throws Exception {
         super.setUp();
         setUpWithStartUrl(null);
@@ -65,4 +117,98 @@ public class CordovaPluginTest extends BaseCordovaIntegrationTest {
         invokeBlockingCallToLifeCycleEvent("callActivityOnStop");
         assertEquals("start,resume,pause,stop,", testPlugin.calls);
     }
+
+    public void testBackgroundStartup() {
+        PluginManager pluginManager = createPluginManager(new NativeToJsMessageQueue(),
+                new PluginEntry("Background", InitThreadPlugin.class.getName(), true, true, ExecThread.DEFAULT),
+                new PluginEntry("Foreground", InitThreadPlugin.class.getName(), true, false, ExecThread.DEFAULT),
+                new PluginEntry("Lazy", InitThreadPlugin.class.getName(), false));
+        pluginManager.init();
+        // Waits for both startups.
+        pluginManager.onResume(false);
+        assertEquals(2, pluginManager.getPluginInitTimes().size());
+
+        InitThreadPlugin background = (InitThreadPlugin)pluginManager.getPlugin("Background");
+        InitThreadPlugin foreground = (InitThreadPlugin)pluginManager.getPlugin("Foreground");
+        assertNotSame(Looper.getMainLooper().getThread(), background.initThread);
+        assertSame(Looper.getMainLooper().getThread(), foreground.initThread);
+        assertFalse(pluginManager.getPluginInitTimes().containsKey("Lazy"));
+    }
+
+    public void testDeferredStartupOnExec() {
+        PluginManager pluginManager = createPluginManager(new NativeToJsMessageQueue(),
+                new PluginEntry("Foreground", InitThreadPlugin.class.getName(), true, false, ExecThread.DEFAULT));
+        pluginManager.init();
+
+        pluginManager.exec("Foreground", "unknown", "Foreground1", "[]");
+        assertTrue(pluginManager.getPluginInitTimes().containsKey("Foreground"));
+        InitThreadPlugin foreground = (InitThreadPlugin)pluginManager.getPlugin("Foreground");
+        assertSame(Looper.getMainLooper().getThread(), foreground.initThread);
+    }
+
+    public void testHooksReachPluginsCreatedLater() {
+        PluginManager pluginManager = createPluginManager(new NativeToJsMessageQueue(),
+                new PluginEntry("Init", InitThreadPlugin.class.getName(), true),
+                new PluginEntry("Navigation", NavigationPlugin.class.getName(), false));
+        pluginManager.init();
+        assertFalse(pluginManager.shouldAllowNavigation("https://allowed/index.html"));
+
+        pluginManager.getPlugin("Navigation");
+        assertTrue(pluginManager.shouldAllowNavigation("https://allowed/index.html"));
+        assertFalse(pluginManager.shouldAllowNavigation("https://other/index.html"));
+    }
+
+    public void testUrlDecisionCache() {
+        CachedNavigationPlugin plugin = new CachedNavigationPlugin();
+        PluginManager pluginManager = createPluginManager(new NativeToJsMessageQueue(), new PluginEntry("Navigation", plugin));
+        pluginManager.init();
+        assertTrue(pluginManager.shouldAllowNavigation("https://allowed/a.html"));
+        assertTrue(pluginManager.shouldAllowNavigation("https://allowed/b.html?c=d"));
+        assertFalse(pluginManager.shouldAllowNavigation("https://other/a.html"));
+        assertEquals(2, plugin.calls);
+        assertEquals(1, pluginManager.getUrlDecisionCacheHits());
+        assertEquals(2, pluginManager.getUrlDecisionCacheMisses());
+
+        // Decisions are shared by the spellings of an origin.
+        assertTrue(pluginManager.shouldAllowNavigation("HTTPS://Allowed/c.html"));
+        assertTrue(pluginManager.shouldAllowNavigation("https://user@allowed:443/d.html"));
+        assertEquals(2, plugin.calls);
+        assertFalse(pluginManager.shouldAllowNavigation("https://allowed:8443/a.html"));
+        assertEquals(3, plugin.calls);
+
+        pluginManager.clearUrlDecisionCache();
+        assertTrue(pluginManager.shouldAllowNavigation("https://allowed/a.html"));
+        assertEquals(4, plugin.calls);
+    }
+
+    public void testPluginCreatedOnceAcrossThreads() throws InterruptedException {
+        final PluginManager pluginManager = createPluginManager(new NativeToJsMessageQueue(),
+                new PluginEntry("Slow", SlowInitPlugin.class.getName(), false));
+        pluginManager.init();
+        SlowInitPlugin.instances.set(0);
+        final CordovaPlugin[] results = new CordovaPlugin[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    results[index] = pluginManager.getPlugin("Slow");
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, SlowInitPlugin.instances.get());
+        for (CordovaPlugin result : results) {
+            assertSame(results[0], result);
+        }
+    }
+
+    public void testGetPluginWithoutService() {
+        PluginManager pluginManager = createPluginManager(new NativeToJsMessageQueue());
+        assertNull(pluginManager.getPlugin(null));
+        assertNull(pluginManager.getPlugin("Missing"));
+    }
 }
@@ -0,0 +1,110 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+
+package org.apache.cordova.test;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
+import org.apache.cordova.CordovaBridge;
+import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.PluginEntry;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Counts the objects allocated by an exec() made through the prompt bridge, for
+ * an action that does not read its args. "Legacy" reproduces the previous path,
+ * where the header and the args were both parsed into JSONArrays up front.
+ * Results are logged under the "ExecBenchmark" tag.
+ */
+@SuppressWarnings("deprecation")
+public class ExecAllocationBenchmarkTest extends BaseCordovaIntegrationTest {
+    private static final String TAG = "ExecBenchmark";
+    private static final String ORIGIN = "file:///android_asset/www/index.html";
+    private static final String ARGS = "[\"some string\",{\"a\":1,\"b\":[1,2,3]},42]";
+    private static final int ITERATIONS = 1000;
+
+    private CordovaBridge bridge;
+    private int bridgeSecret;
+
+    /** Uses the default execute() chain. */
+    public static class FastPlugin extends CordovaPlugin {
+        @Override
+        public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) {
+            return true;
+        }
+    }
+
+    /** Forces args to be parsed into a JSONArray, as every exec() used to. */
+    public static class LegacyPlugin extends CordovaPlugin {
+        @Override
+        public boolean execute(String action, JSONArray args, CallbackContext callbackContext) {
+            new CordovaArgs(args);
+            return true;
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        setUpWithStartUrl(null);
+        NativeToJsMessageQueue queue = new NativeToJsMessageQueue();
+        queue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
+        bridge = new CordovaBridge(createPluginManager(queue, new PluginEntry("FastBench", new FastPlugin()), new PluginEntry("LegacyBench", new LegacyPlugin())), queue);
+        bridgeSecret = Integer.parseInt(bridge.promptOnJsPrompt(ORIGIN, "", "gap_init:0"));
+    }
+
+    public void testExecAllocations() throws Exception {
+        // Warm up both, so that neither run counts class loading or first-use caches.
+        runLegacy(100);
+        runFast(100);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        runLegacy(ITERATIONS);
+        int legacyCount = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        runFast(ITERATIONS);
+        int fastCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Log.i(TAG, "Legacy: " + (legacyCount / ITERATIONS) + " allocations per exec");
+        Log.i(TAG, "Current: " + (fastCount / ITERATIONS) + " allocations per exec");
+        assertTrue(fastCount < legacyCount);
+    }
+
+    private void runLegacy(int iterations) throws JSONException, IllegalAccessException {
+        String header = "gap:[" + bridgeSecret + ",\"LegacyBench\",\"ping\",\"LegacyBench1\"]";
+        for (int i = 0; i < iterations; ++i) {
+            JSONArray array = new JSONArray(header.substring(4));
+            bridge.jsExec(array.getInt(0), array.getString(1), array.getString(2), array.getString(3), ARGS);
+        }
+    }
+
+    private void runFast(int iterations) {
+        String header = "gap:[" + bridgeSecret + ",\"FastBench\",\"ping\",\"FastBench1\"]";
+        for (int i = 0; i < iterations; ++i) {
+            bridge.promptOnJsPrompt(ORIGIN, ARGS, header);
+        }
+    }
+}
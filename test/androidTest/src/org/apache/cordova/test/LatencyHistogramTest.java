@@ -0,0 +1,78 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.test;
+
+import junit.framework.TestCase;
+
+import org.apache.cordova.LatencyHistogram;
+import org.json.JSONObject;
+
+public class LatencyHistogramTest extends TestCase {
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMean());
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 4; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(4, histogram.getCount());
+        assertEquals(2, histogram.getPercentile(50));
+        assertEquals(4, histogram.getPercentile(100));
+        assertEquals(2, histogram.getMean());
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 100);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertWithinBucket(50000, histogram.getPercentile(50));
+        assertWithinBucket(99000, histogram.getPercentile(99));
+        assertEquals(100000, histogram.getPercentile(100));
+    }
+
+    public void testLargeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        assertEquals((1L << 32) - 1, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    public void testToJSONObject() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        JSONObject json = histogram.toJSONObject();
+        assertEquals(1, json.getLong("count"));
+        assertEquals(10, json.getLong("max"));
+        histogram.reset();
+        assertEquals(0, histogram.toJSONObject().getLong("count"));
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue("Expected ~" + expected + " but was " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+
+package org.apache.cordova.test;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.PluginResult;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures producer contention on NativeToJsMessageQueue: several plugin threads
+ * send results while a single thread drains the queue, as the JS bridge does.
+ * Compares against SynchronizedQueue, which reproduces the LinkedList + synchronized
+ * implementation that NativeToJsMessageQueue used previously.
+ * Results are logged under the "QueueBenchmark" tag.
+ */
+public class NativeToJsMessageQueueBenchmarkTest extends TestCase {
+    private static final String TAG = "QueueBenchmark";
+    private static final int NUM_PRODUCERS = 8;
+    private static final int MESSAGES_PER_PRODUCER = 20000;
+
+    interface Sink {
+        void add(PluginResult result, String callbackId);
+        /** Returns the number of messages drained. */
+        int drain();
+    }
+
+    public void testProducerContention() throws InterruptedException {
+        // Warm up both so that neither run pays for class loading / JIT.
+        runBenchmark("warmup", newLockFreeSink());
+        runBenchmark("warmup", new SynchronizedQueue());
+
+        long syncNanos = runBenchmark("LinkedList+synchronized", new SynchronizedQueue());
+        long lockFreeNanos = runBenchmark("NativeToJsMessageQueue", newLockFreeSink());
+        Log.i(TAG, "Speed-up: " + ((double) syncNanos / lockFreeNanos) + "x");
+    }
+
+    private static Sink newLockFreeSink() {
+        final NativeToJsMessageQueue queue = new NativeToJsMessageQueue();
+        queue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
+        queue.setBridgeMode(0);
+        return new Sink() {
+            public void add(PluginResult result, String callbackId) {
+                queue.addPluginResult(result, callbackId);
+            }
+            public int drain() {
+                String payload = queue.popAndEncode(false);
+                return payload == null ? 0 : countMessages(payload);
+            }
+        };
+    }
+
+    /**
+     * Returns the wall time taken for all producers to finish enqueueing.
+     */
+    private long runBenchmark(String name, final Sink sink) throws InterruptedException {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(NUM_PRODUCERS);
+        final AtomicLong maxEnqueueNanos = new AtomicLong();
+        final PluginResult result = new PluginResult(PluginResult.Status.OK, "progress");
+        result.setKeepCallback(true);
+
+        for (int t = 0; t < NUM_PRODUCERS; ++t) {
+            final String callbackId = "Sensor" + t;
+            new Thread(new Runnable() {
+                public void run() {
+                    long localMax = 0;
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < MESSAGES_PER_PRODUCER; ++i) {
+                        long start = System.nanoTime();
+                        sink.add(result, callbackId);
+                        localMax = Math.max(localMax, System.nanoTime() - start);
+                    }
+                    long prev;
+                    while ((prev = maxEnqueueNanos.get()) < localMax && !maxEnqueueNanos.compareAndSet(prev, localMax)) {
+                    }
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+
+        int total = NUM_PRODUCERS * MESSAGES_PER_PRODUCER;
+        int drained = 0;
+        long start = System.nanoTime();
+        startLatch.countDown();
+        while (doneLatch.getCount() > 0) {
+            drained += sink.drain();
+        }
+        long producerNanos = System.nanoTime() - start;
+        int n;
+        while ((n = sink.drain()) > 0) {
+            drained += n;
+        }
+        assertEquals(total, drained);
+        Log.i(TAG, name + ": " + total + " messages from " + NUM_PRODUCERS + " threads in "
+                + (producerNanos / 1000000) + "ms, worst enqueue " + (maxEnqueueNanos.get() / 1000) + "us");
+        return producerNanos;
+    }
+
+    private static int countMessages(String payload) {
+        int count = 0;
+        int i = 0;
+        while (i < payload.length() && payload.charAt(i) != '*') {
+            int spaceIdx = payload.indexOf(' ', i);
+            i = spaceIdx + 1 + Integer.parseInt(payload.substring(i, spaceIdx));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The previous NativeToJsMessageQueue storage: every producer and the
+     * drain take the same monitor, and the drain holds it while encoding.
+     */
+    private static class SynchronizedQueue implements Sink {
+        private final LinkedList<Object[]> queue = new LinkedList<Object[]>();
+
+        public synchronized void add(PluginResult result, String callbackId) {
+            queue.add(new Object[] { result, callbackId });
+        }
+
+        public synchronized int drain() {
+            if (queue.isEmpty()) {
+                return 0;
+            }
+            int totalPayloadLen = 0;
+            for (Object[] message : queue) {
+                totalPayloadLen += encodedLength(message) + 8;
+            }
+            StringBuilder sb = new StringBuilder(totalPayloadLen);
+            int count = queue.size();
+            for (int i = 0; i < count; ++i) {
+                Object[] message = queue.removeFirst();
+                PluginResult result = (PluginResult) message[0];
+                sb.append(encodedLength(message))
+                  .append(' ')
+                  .append('S')
+                  .append(result.getKeepCallback() ? '1' : '0')
+                  .append(result.getStatus())
+                  .append(' ')
+                  .append((String) message[1])
+                  .append(' ')
+                  .append('s')
+                  .append(result.getStrMessage());
+            }
+            sb.toString();
+            return count;
+        }
+
+        private static int encodedLength(Object[] message) {
+            PluginResult result = (PluginResult) message[0];
+            return 2 + String.valueOf(result.getStatus()).length() + 1
+                    + ((String) message[1]).length() + 1 + 1 + result.getStrMessage().length();
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+
+package org.apache.cordova.test;
+
+import junit.framework.TestCase;
+
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class NativeToJsMessageQueueTest extends TestCase {
+    private NativeToJsMessageQueue queue;
+    private CountingBridgeMode bridgeMode;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        queue = new NativeToJsMessageQueue();
+        bridgeMode = new CountingBridgeMode();
+        queue.addBridgeMode(bridgeMode);
+        queue.setBridgeMode(0);
+    }
+
+    public void testMessagesAreDeliveredInOrder() {
+        for (int i = 0; i < 10; ++i) {
+            queue.addPluginResult(new PluginResult(PluginResult.Status.OK, i), "cb1");
+        }
+        List<String> messages = drain(queue);
+        assertEquals(10, messages.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("S01 cb1 n" + i, messages.get(i));
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testConcurrentProducersKeepPerThreadOrder() throws InterruptedException {
+        final int numThreads = 4;
+        final int numMessages = 2000;
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            final String callbackId = "cb" + t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < numMessages; ++i) {
+                        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, i), callbackId);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        List<String> messages = new ArrayList<String>();
+        boolean producersDone = false;
+        while (!producersDone) {
+            producersDone = true;
+            for (Thread thread : threads) {
+                producersDone &= !thread.isAlive();
+            }
+            messages.addAll(drain(queue));
+        }
+        assertEquals(numThreads * numMessages, messages.size());
+        int[] lastSeen = new int[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            lastSeen[t] = -1;
+        }
+        for (String message : messages) {
+            // Of the form: S01 cb<t> n<i>
+            String[] parts = message.split(" ");
+            int t = Integer.parseInt(parts[1].substring(2));
+            int i = Integer.parseInt(parts[2].substring(1));
+            assertEquals(lastSeen[t] + 1, i);
+            lastSeen[t] = i;
+        }
+    }
+
+    public void testResetDropsMessages() {
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "cb1");
+        assertFalse(queue.isEmpty());
+        queue.reset();
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.isBridgeEnabled());
+        // Messages are dropped while the bridge is disabled.
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "b"), "cb1");
+        queue.setBridgeMode(0);
+        assertNull(queue.popAndEncode(false));
+    }
+
+    public void testPausedDoesNotNotify() {
+        queue.setPaused(true);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "cb1");
+        assertEquals(0, bridgeMode.notifyCount);
+        queue.setPaused(false);
+        assertEquals(1, bridgeMode.notifyCount);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "b"), "cb1");
+        assertEquals(2, bridgeMode.notifyCount);
+        assertEquals(2, drain(queue).size());
+    }
+
+    public void testCoalescingKeepsLatestProgressResult() {
+        for (int i = 0; i < 5; ++i) {
+            PluginResult progress = new PluginResult(PluginResult.Status.OK, i);
+            progress.setKeepCallback(true);
+            progress.setCoalesce(true);
+            queue.addPluginResult(progress, "cb1");
+            if (i == 0) {
+                queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "other"), "cb2");
+            }
+        }
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "done"), "cb1");
+        List<String> messages = drain(queue);
+        assertEquals(3, messages.size());
+        assertEquals("S11 cb1 n4", messages.get(0));
+        assertEquals("S01 cb2 sother", messages.get(1));
+        assertEquals("S01 cb1 sdone", messages.get(2));
+
+        // Results already claimed by a drain are not replaced.
+        PluginResult progress = new PluginResult(PluginResult.Status.OK, 5);
+        progress.setKeepCallback(true);
+        progress.setCoalesce(true);
+        queue.addPluginResult(progress, "cb3");
+        assertEquals(1, drain(queue).size());
+        queue.addPluginResult(progress, "cb3");
+        assertEquals(1, drain(queue).size());
+    }
+
+    public void testCoalescingUntilSent() {
+        queue.setMaxChunkSize(10);
+        queue.addPluginResult(progress("0123456789abcdefghij"), "cb1");
+        queue.addPluginResult(progress("a"), "cb2");
+        // Claims both messages, but only sends the first fragment of the first.
+        assertEquals("11 ~S11 cb1 s0*", queue.popAndEncode(false));
+        queue.addPluginResult(progress("b"), "cb2");
+        // The message being sent in fragments is not replaced.
+        queue.addPluginResult(progress("c"), "cb1");
+
+        List<String> messages = drain(queue);
+        assertEquals(3, messages.size());
+        // The rest of the fragments.
+        assertEquals("123456789abcdefghij", messages.get(0));
+        assertEquals("S11 cb2 sb", messages.get(1));
+        assertEquals("S11 cb1 sc", messages.get(2));
+    }
+
+    private static PluginResult progress(String value) {
+        PluginResult ret = new PluginResult(PluginResult.Status.OK, value);
+        ret.setKeepCallback(true);
+        ret.setCoalesce(true);
+        return ret;
+    }
+
+    public void testLargeMessagesAreSentInChunks() {
+        queue.setMaxChunkSize(10);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "0123456789abcdefghij"), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "b"), "cb1");
+
+        // Small messages before the large one are still batched.
+        assertEquals("10 S01 cb1 sa*", queue.popAndEncode(false));
+        assertEquals("11 ~S01 cb1 s0*", queue.popAndEncode(false));
+        assertEquals("11 ~123456789a*", queue.popAndEncode(false));
+        assertEquals("9 bcdefghij*", queue.popAndEncode(false));
+        assertEquals("10 S01 cb1 sb", queue.popAndEncode(false));
+        assertNull(queue.popAndEncode(false));
+
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "0123456789abcdefghij"), "cb1");
+        List<String> messages = drain(queue);
+        assertEquals(1, messages.size());
+        assertEquals("S01 cb1 s0123456789abcdefghij", messages.get(0));
+    }
+
+    public void testChunksDoNotSplitSurrogatePairs() {
+        queue.setMaxChunkSize(10);
+        // The 10th char of the message is the first half of U+1F600.
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "\ud83d\ude00xyz"), "cb1");
+        assertEquals("10 ~S01 cb1 s*", queue.popAndEncode(false));
+        assertEquals("5 \ud83d\ude00xyz", queue.popAndEncode(false));
+    }
+
+    public void testInteractiveMessagesSentBeforeBulk() {
+        PluginResult bulk = new PluginResult(PluginResult.Status.OK, "rows");
+        bulk.setLane(PluginResult.LANE_BULK);
+        bulk.setKeepCallback(true);
+        queue.addPluginResult(bulk, "db1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "pause"), "app1");
+        // Must not overtake the bulk result for the same callback.
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "done"), "db1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "resume"), "app1");
+
+        List<String> messages = drain(queue);
+        assertEquals(4, messages.size());
+        assertEquals("S01 app1 spause", messages.get(0));
+        assertEquals("S01 app1 sresume", messages.get(1));
+        assertEquals("S11 db1 srows", messages.get(2));
+        assertEquals("S01 db1 sdone", messages.get(3));
+
+        // Once the bulk result is sent, the callback's results are interactive again.
+        queue.addPluginResult(bulk, "db2");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "db1");
+        messages = drain(queue);
+        assertEquals("S01 db1 sa", messages.get(0));
+        assertEquals("S11 db2 srows", messages.get(1));
+    }
+
+    public void testFailFastWhenFull() {
+        queue.setCapacity(2, 0);
+        queue.setOverflowPolicy(NativeToJsMessageQueue.OVERFLOW_FAIL_FAST);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "cb1");
+        assertEquals(0.5f, queue.getPressure());
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "b"), "cb2");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "c"), "cb3");
+        assertEquals(1, queue.getDroppedMessageCount());
+
+        List<String> messages = drain(queue);
+        assertEquals(3, messages.size());
+        assertEquals("F09 cb3 sNative->JS message queue is full", messages.get(2));
+        assertEquals(0f, queue.getPressure());
+    }
+
+    public void testDropOldestKeepCallbackWhenFull() {
+        queue.setCapacity(2, 0);
+        queue.setOverflowPolicy(NativeToJsMessageQueue.OVERFLOW_DROP_OLDEST_KEEP_CALLBACK);
+        for (int i = 0; i < 3; ++i) {
+            PluginResult progress = new PluginResult(PluginResult.Status.OK, i);
+            progress.setKeepCallback(true);
+            queue.addPluginResult(progress, "cb1");
+        }
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "done"), "cb1");
+        assertEquals(2, queue.getDroppedMessageCount());
+
+        List<String> messages = drain(queue);
+        assertEquals(2, messages.size());
+        assertEquals("S11 cb1 n2", messages.get(0));
+        assertEquals("S01 cb1 sdone", messages.get(1));
+    }
+
+    public void testBlockProducerWhenFull() throws InterruptedException {
+        queue.setCapacity(0, 100);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "0123456789012345678901234567890123456789"), "cb1");
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "b"), "cb2");
+            }
+        });
+        producer.start();
+        while (queue.getBlockedMessageCount() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, drain(queue).size());
+        producer.join();
+        assertEquals(1, drain(queue).size());
+        assertEquals(0, queue.getDroppedMessageCount());
+    }
+
+    public void testArrayBuffersSentAsBinaryPayloads() {
+        byte[] data = new byte[] { 1, 2, 3 };
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, data), "cb1");
+        queue.setBinaryPayloadsEnabled(true);
+        // Not used until the page has fetched the probe.
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, data), "cb1");
+        assertNotNull(queue.takeBinaryPayload(NativeToJsMessageQueue.BINARY_PAYLOAD_PROBE_URL));
+        queue.setBinaryPayloadsConfirmed(true);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, data), "cb1");
+
+        List<String> messages = drain(queue);
+        assertEquals(3, messages.size());
+        assertEquals("S01 cb1 AAQID", messages.get(0));
+        assertEquals("S01 cb1 AAQID", messages.get(1));
+        assertTrue(messages.get(2).startsWith("S01 cb1 B" + NativeToJsMessageQueue.BINARY_PAYLOAD_URL_PREFIX));
+        String url = messages.get(2).substring("S01 cb1 B".length());
+        assertSame(data, queue.takeBinaryPayload(url));
+        // URLs are one-time.
+        assertNull(queue.takeBinaryPayload(url));
+
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, data), "cb1");
+        url = drain(queue).get(0).substring("S01 cb1 B".length());
+        queue.reset();
+        assertNull(queue.takeBinaryPayload(url));
+        // Each page confirms for itself.
+        assertFalse(queue.getBinaryPayloadsConfirmed());
+    }
+
+    public void testJsonResultsMatchToString() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("s", "q\"b\\s/t\tn\nc\u0001");
+        obj.put("n", 1.5);
+        obj.put("l", 1L << 40);
+        obj.put("b", true);
+        obj.put("z", JSONObject.NULL);
+        obj.put("a", new JSONArray("[1,[],{},[{\"k\":null}]]"));
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, obj), "cb1");
+        JSONArray array = new JSONArray("[\"x\",{\"y\":[]}]");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, array), "cb1");
+
+        List<String> messages = drain(queue);
+        assertEquals("S01 cb1 " + obj.toString(), messages.get(0));
+        assertEquals("S01 cb1 " + array.toString(), messages.get(1));
+        assertEquals(array.toString(), new PluginResult(PluginResult.Status.OK, array).getMessage());
+    }
+
+    public void testJsonSentAsItWasWhenQueued() throws Exception {
+        JSONObject obj = new JSONObject("{\"v\":1}");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, obj), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, Arrays.asList(new PluginResult(PluginResult.Status.OK, obj))), "cb1");
+        obj.put("v", 2);
+        List<String> messages = drain(queue);
+        assertEquals("S01 cb1 {\"v\":1}", messages.get(0));
+        assertEquals("S01 cb1 M7 {\"v\":1}", messages.get(1));
+
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, obj), "cb1");
+        obj.put("v", 3);
+        assertEquals("cordova.callbackFromNative('cb1',true,1,[{\"v\":2}],false);", queue.popAndEncodeAsJs());
+
+        queue.setBinaryPayloadsEnabled(true);
+        queue.setBinaryPayloadsConfirmed(true);
+        queue.setBinaryWireFormatEnabled(true);
+        queue.setMinBinaryBatchSize(0);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, obj), "cb1");
+        obj.put("v", 4);
+        String message = drain(queue).get(0);
+        byte[] batch = queue.takeBinaryPayload(message.substring(1, message.indexOf(' ')));
+        // After the header (9), status (3), callbackId index (4), tag (1) and length (4).
+        assertEquals("{\"v\":3}", new String(batch, 21, 14, "UTF-16LE"));
+    }
+
+    public void testPrimitiveResults() {
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, -1234567890123L), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, Long.MIN_VALUE), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, 0.5), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, 0.1f), "cb1");
+        // Little-endian bytes, base64 encoded.
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, new double[] { 1.5, -2 }), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, new int[] { 1, -2, 300 }), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, new int[0]), "cb1");
+
+        List<String> messages = drain(queue);
+        assertEquals("S01 cb1 n-1234567890123", messages.get(0));
+        assertEquals("S01 cb1 n-9223372036854775808", messages.get(1));
+        assertEquals("S01 cb1 n0.5", messages.get(2));
+        assertEquals("S01 cb1 n0.1", messages.get(3));
+        assertEquals("S01 cb1 DAAAAAAAA+D8AAAAAAAAAwA==", messages.get(4));
+        assertEquals("S01 cb1 IAQAAAP7///8sAQAA", messages.get(5));
+        assertEquals("S01 cb1 I", messages.get(6));
+    }
+
+    public void testStatusResults() {
+        PluginResult ok = PluginResult.forStatus(PluginResult.Status.OK);
+        assertEquals("\"OK\"", ok.getMessage());
+        // Unlike the shared results that CallbackContext sends, these can be modified.
+        assertNotSame(ok, PluginResult.forStatus(PluginResult.Status.OK));
+        ok.setKeepCallback(true);
+        assertTrue(ok.getKeepCallback());
+
+        queue.addPluginResult(ok, "cb1");
+        queue.addPluginResult(PluginResult.forStatus(PluginResult.Status.ERROR, ""), "cb2");
+        List<String> messages = drain(queue);
+        assertEquals("S11 cb1 sOK", messages.get(0));
+        assertEquals("F09 cb2 s", messages.get(1));
+    }
+
+    public void testBinaryWireFormat() {
+        queue.setBinaryPayloadsEnabled(true);
+        queue.setBinaryPayloadsConfirmed(true);
+        queue.setBinaryWireFormatEnabled(true);
+        // Small batches are sent as text.
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "cb1");
+        assertEquals("S01 cb1 sa", drain(queue).get(0));
+
+        queue.setMinBinaryBatchSize(0);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "cb1");
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, "a"), "cb1");
+        String message = drain(queue).get(0);
+        assertTrue(message.startsWith("W" + NativeToJsMessageQueue.BINARY_PAYLOAD_URL_PREFIX));
+        // Followed by the batch's callbacks and whether they are kept.
+        assertTrue(message.endsWith(" 0cb1"));
+        byte[] expected = new byte[] {
+            1, 2, 0, 0, 0, 37, 0, 0, 0,                  // Version, message count, string table offset
+            'S', 0, 1, 0, 0, 0, 0, 5, 1, 0, 0, 0, 'a', 0, // Status, callbackId index, string value
+            'S', 0, 1, 0, 0, 0, 0, 5, 1, 0, 0, 0, 'a', 0,
+            1, 0, 0, 0, 3, 0, 0, 0, 'c', 0, 'b', 0, '1', 0  // The callbackId, once
+        };
+        assertTrue(Arrays.equals(expected, queue.takeBinaryPayload(message.substring(1, message.indexOf(' ')))));
+
+        // The text format is used again after a page transition, until cordova.js asks for binary.
+        queue.reset();
+        assertFalse(queue.getBinaryWireFormatEnabled());
+    }
+
+    /**
+     * Pops everything from the queue and splits it into individual messages.
+     */
+    static List<String> drain(NativeToJsMessageQueue queue) {
+        List<String> ret = new ArrayList<String>();
+        StringBuilder chunks = new StringBuilder();
+        String payload;
+        while ((payload = queue.popAndEncode(false)) != null) {
+            int i = 0;
+            while (i < payload.length() && payload.charAt(i) != '*') {
+                int spaceIdx = payload.indexOf(' ', i);
+                int len = Integer.parseInt(payload.substring(i, spaceIdx));
+                String message = payload.substring(spaceIdx + 1, spaceIdx + 1 + len);
+                i = spaceIdx + 1 + len;
+                if (message.charAt(0) == '~') {
+                    chunks.append(message, 1, message.length());
+                    continue;
+                }
+                if (chunks.length() > 0) {
+                    message = chunks.append(message).toString();
+                    chunks.setLength(0);
+                }
+                ret.add(message);
+            }
+        }
+        return ret;
+    }
+
+    static class CountingBridgeMode extends NativeToJsMessageQueue.BridgeMode {
+        volatile int notifyCount;
+        @Override
+        public void onNativeToJsMessageAvailable(NativeToJsMessageQueue queue) {
+            notifyCount++;
+        }
+    }
+}